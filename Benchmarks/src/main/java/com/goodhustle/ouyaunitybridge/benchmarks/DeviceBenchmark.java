@@ -0,0 +1,72 @@
+package com.goodhustle.ouyaunitybridge.benchmarks;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.DevicePlayerMap;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.PlayerSlots;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The device bookkeeping behind InputEngine's device scan and the per-event player lookup. Device ids are
+ * spread the way Android hands them out: a handful of system devices, then controllers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceBenchmark {
+    @Param({"4", "8"})
+    public int controllers;
+
+    private int[] deviceIds;
+    private int[] withoutLast;
+    private String[] descriptors;
+    private DevicePlayerMap map;
+    private PlayerSlots slots;
+    private int lookup = 0;
+
+    @Setup
+    public void Setup() {
+        deviceIds = new int[controllers + 3];
+        descriptors = new String[deviceIds.length];
+        for (int i=0; i<deviceIds.length; i++) {
+            deviceIds[i] = i < 3 ? i - 1 : 7 + i;
+            descriptors[i] = "descriptor-" + i;
+        }
+        withoutLast = new int[deviceIds.length - 1];
+        System.arraycopy(deviceIds, 0, withoutLast, 0, withoutLast.length);
+        map = new DevicePlayerMap();
+        slots = new PlayerSlots(controllers, 0);
+        for (int i=3; i<deviceIds.length; i++) {
+            map.Put(deviceIds[i], slots.Assign(deviceIds[i], descriptors[i]));
+        }
+    }
+
+    /**
+     * What every key and motion event pays to find its player.
+     */
+    @Benchmark
+    public int PlayerLookup() {
+        return map.GetPlayer(deviceIds[3 + (lookup++ % controllers)]);
+    }
+
+    /**
+     * A controller dropping out and reconnecting, as the device scan sees it.
+     */
+    @Benchmark
+    public int Reconnect() {
+        int last = deviceIds.length - 1;
+        int released = slots.ReleaseMissing(withoutLast);
+        return released + slots.Assign(deviceIds[last], descriptors[last]);
+    }
+
+    @Benchmark
+    public DevicePlayerMap RebuildMap() {
+        DevicePlayerMap rebuilt = new DevicePlayerMap();
+        for (int i=3; i<deviceIds.length; i++) {
+            rebuilt.Put(deviceIds[i], slots.GetSlot(deviceIds[i]));
+        }
+        return rebuilt;
+    }
+}
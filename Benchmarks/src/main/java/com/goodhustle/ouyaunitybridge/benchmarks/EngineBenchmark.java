@@ -0,0 +1,175 @@
+package com.goodhustle.ouyaunitybridge.benchmarks;
+
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerProfile;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.Device;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.DeviceChanges;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.InputEngine;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import tv.ouya.console.api.OuyaController;
+
+/**
+ * The whole input path through InputEngine with no Android underneath: a fake backend with
+ * the given number of pads, each reporting sticks at 1 kHz with a button press every 64
+ * samples, and Unity taking a snapshot once per 60 Hz frame. Run with -prof gc to see what
+ * the path allocates per event. The stick circles pass through quarter circles, so with
+ * combos registered the recognizer keeps advancing and matching. MotionEvent reads the same
+ * samples out of a MotionEvent through the device's controller profile first, as the
+ * activity does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+    private static final int FRAMES = 1024;
+
+    @Param({"1", "4", "8"})
+    public int pads;
+
+    /**
+     * How many combo patterns are registered, from none to a fighting game's move list.
+     */
+    @Param({"0", "16"})
+    public int combos;
+
+    /**
+     * Whether the pads identify as Xbox 360 pads, which are read through a profile with the
+     * d-pad on the hat, or as OUYA controllers.
+     */
+    @Param({"false", "true"})
+    public boolean xbox;
+
+    private static final String[] PATTERNS = {
+        "2 3 6 O", "2 1 4 O", "6 2 3 U", "4 2 1 U", "[4]500 6 Y", "[2]500 8 Y", "6 3 2 1 4 A", "O+U",
+    };
+
+    private InputEngine engine;
+    private int[] deviceIds;
+    private float[][] frames;
+    private MotionEvent[] events;
+    private final float[] axes = new float[6];
+    private int event = 0;
+    private long eventTime = 0;
+
+    private static class FakeBackend implements InputEngine.ControllerBackend {
+        private final int[] deviceIds;
+        private final String name;
+
+        FakeBackend(int[] deviceIds, String name) {
+            this.deviceIds = deviceIds;
+            this.name = name;
+        }
+
+        @Override
+        public int[] GetDeviceIds() {
+            return deviceIds;
+        }
+
+        @Override
+        public boolean ReadDevice(int deviceId, Device device) {
+            device.id = deviceId;
+            device.name = name;
+            device.descriptor = "pad-" + deviceId;
+            return true;
+        }
+
+        @Override
+        public void Reinitialize() {
+        }
+    }
+
+    private static class NullSink implements InputEngine.UnitySink {
+        @Override
+        public void SendDeviceChanges(DeviceChanges changes) {
+        }
+
+        @Override
+        public void SendMenuButtonPressed(int playerNum) {
+        }
+    }
+
+    @Setup
+    public void Setup() {
+        deviceIds = new int[pads];
+        for (int i=0; i<pads; i++) {
+            deviceIds[i] = 10 + i;
+        }
+        String name = xbox ? "Microsoft X-Box 360 pad" : "OUYA Game Controller";
+        engine = new InputEngine(pads, new FakeBackend(deviceIds, name), new NullSink());
+        engine.ResetDevices();
+        for (int i=0; i<combos; i++) {
+            engine.GetComboRecognizer().Add(i, PATTERNS[i % PATTERNS.length], 150);
+        }
+        frames = new float[FRAMES][];
+        for (int i=0; i<FRAMES; i++) {
+            double angle = 2 * Math.PI * i / FRAMES;
+            frames[i] = new float[] {
+                (float) Math.cos(angle), (float) Math.sin(angle),
+                (float) -Math.sin(angle), (float) Math.cos(angle),
+                (float) i / FRAMES, 1 - (float) i / FRAMES,
+            };
+        }
+        events = new MotionEvent[pads];
+        for (int i=0; i<pads; i++) {
+            events[i] = new MotionEvent(deviceIds[i], InputDevice.SOURCE_JOYSTICK);
+        }
+    }
+
+    /**
+     * One event from one pad, as the activity's handlers deliver it, including the player lookup.
+     */
+    @Benchmark
+    public float[] Event() {
+        int n = event++;
+        int deviceId = deviceIds[n % pads];
+        int sample = n / pads;
+        long time = ++eventTime;
+        int playerNum = engine.GetPlayer(deviceId);
+        if ((sample & 63) == 0) {
+            engine.OnKey(playerNum, deviceId, OuyaController.BUTTON_O, (sample & 64) == 0, time);
+        } else {
+            engine.OnAxes(playerNum, deviceId, frames[sample & (FRAMES - 1)], time);
+        }
+        if (sample % 17 == 0 && n % pads == 0) {
+            engine.GetComboRecognizer().GetMatches().Drain();
+            return engine.TakeSnapshot();
+        }
+        return null;
+    }
+
+    /**
+     * One motion event from one pad as onGenericMotionEvent handles it: the player and profile
+     * lookups, reading the axes through the profile, and the hat for pads that have one.
+     */
+    @Benchmark
+    public boolean MotionEvent() {
+        int n = event++;
+        int deviceId = deviceIds[n % pads];
+        float[] frame = frames[(n / pads) & (FRAMES - 1)];
+        MotionEvent motion = events[n % pads];
+        motion.SetEventTime(++eventTime);
+        motion.SetAxisValue(MotionEvent.AXIS_X, frame[0]);
+        motion.SetAxisValue(MotionEvent.AXIS_Y, frame[1]);
+        motion.SetAxisValue(MotionEvent.AXIS_Z, frame[2]);
+        motion.SetAxisValue(MotionEvent.AXIS_RZ, frame[3]);
+        motion.SetAxisValue(MotionEvent.AXIS_LTRIGGER, frame[4]);
+        motion.SetAxisValue(MotionEvent.AXIS_RTRIGGER, frame[5]);
+        motion.SetAxisValue(MotionEvent.AXIS_HAT_X, Math.round(frame[0]));
+        motion.SetAxisValue(MotionEvent.AXIS_HAT_Y, Math.round(frame[1]));
+
+        int playerNum = engine.GetPlayer(deviceId);
+        ControllerProfile profile = engine.GetProfile(deviceId);
+        profile.ReadAxes(motion, axes, 0);
+        boolean changed = engine.OnAxes(playerNum, deviceId, axes, motion.getEventTime());
+        if (profile.HasHatDpad()) {
+            engine.OnHat(playerNum, deviceId, motion.getAxisValue(MotionEvent.AXIS_HAT_X),
+                motion.getAxisValue(MotionEvent.AXIS_HAT_Y), motion.getEventTime());
+        }
+        return changed;
+    }
+}
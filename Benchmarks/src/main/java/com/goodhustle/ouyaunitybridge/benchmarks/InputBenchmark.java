@@ -0,0 +1,113 @@
+package com.goodhustle.ouyaunitybridge.benchmarks;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.AxisFilter;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerState;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerStateStore;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.StateWriter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import tv.ouya.console.api.OuyaController;
+
+/**
+ * The work onKeyDown, onKeyUp, onGenericMotionEvent and pointer capture do once the device is
+ * resolved, and the reader side of GetControllerSnapshot. Motion events replay a circle on both
+ * sticks with a trigger ramp, one sample per millisecond like a controller reporting at 1 kHz,
+ * across the given number of players. Each invocation handles one event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputBenchmark {
+    private static final int FRAMES = 1024;
+    private static final int[] KEY_CODES = {
+        OuyaController.BUTTON_O, OuyaController.BUTTON_U, OuyaController.BUTTON_Y, OuyaController.BUTTON_A,
+        OuyaController.BUTTON_DPAD_UP, OuyaController.BUTTON_DPAD_DOWN, OuyaController.BUTTON_L1, OuyaController.BUTTON_R1,
+    };
+
+    @Param({"1", "4", "8"})
+    public int players;
+
+    /**
+     * Whether a deadzone, response curve and smoothing are set, as a shipping game would.
+     */
+    @Param({"false", "true"})
+    public boolean filtered;
+
+    private ControllerStateStore store;
+    private StateWriter writer;
+    private float[][] frames;
+    private float[] snapshot;
+    private int event = 0;
+    private long eventTime = 0;
+
+    @Setup
+    public void Setup() {
+        store = new ControllerStateStore(players);
+        AxisFilter[] filters = new AxisFilter[players];
+        for (int i=0; i<players; i++) {
+            filters[i] = new AxisFilter();
+            if (filtered) {
+                filters[i].SetStickDeadzone(0, 0.25f);
+                filters[i].SetStickDeadzone(1, 0.25f);
+                for (int axis=0; axis<6; axis++) {
+                    filters[i].SetAxis(axis, 0, 1.5f, 0.5f, 0.01f);
+                }
+            }
+        }
+        writer = new StateWriter(store, filters);
+        frames = new float[FRAMES][];
+        for (int i=0; i<FRAMES; i++) {
+            double angle = 2 * Math.PI * i / FRAMES;
+            frames[i] = new float[] {
+                (float) Math.cos(angle), (float) Math.sin(angle),
+                (float) -Math.sin(angle), (float) Math.cos(angle),
+                (float) i / FRAMES, 1 - (float) i / FRAMES,
+            };
+        }
+        snapshot = new float[OuyaUnityActivity.SNAPSHOT_HEADER + players * OuyaUnityActivity.SNAPSHOT_STRIDE];
+    }
+
+    @Benchmark
+    public boolean MotionEvent() {
+        int n = event++;
+        return writer.OnAxes(n % players, n % players, frames[(n / players) & (FRAMES - 1)], ++eventTime);
+    }
+
+    @Benchmark
+    public boolean KeyEvent() {
+        int n = event++;
+        int keyCode = KEY_CODES[(n / 2) & (KEY_CODES.length - 1)];
+        return writer.OnKey(n % players, n % players, keyCode, (n & 1) == 0, ++eventTime);
+    }
+
+    /**
+     * A cursor sweeping back and forth, with a click every 64 moves.
+     */
+    @Benchmark
+    public boolean PointerEvent() {
+        int n = event++;
+        float[] frame = frames[(n / players) & (FRAMES - 1)];
+        int flags = ControllerState.POINTER_HOVER | ((n & 64) != 0 ? ControllerState.POINTER_DOWN : 0);
+        return writer.OnPointer(n % players, n % players, flags, 960 + 900 * frame[0], 540 + 500 * frame[1], ++eventTime);
+    }
+
+    /**
+     * One player moving a stick between two frames, then Unity taking the snapshot.
+     */
+    @Benchmark
+    public float[] Snapshot() {
+        int n = event++;
+        writer.OnAxes(n % players, n % players, frames[n & (FRAMES - 1)], ++eventTime);
+        if (store.Acquire()) {
+            ControllerState[] states = store.GetFrontStates();
+            for (int i=0; i<players; i++) {
+                states[i].WriteSnapshot(snapshot, OuyaUnityActivity.SNAPSHOT_HEADER + i * OuyaUnityActivity.SNAPSHOT_STRIDE);
+            }
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,69 @@
+package com.goodhustle.ouyaunitybridge.benchmarks;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.AxisFilter;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerState;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerStateStore;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.StateWriter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The UI thread publishing motion events while Unity's thread takes snapshots, to catch
+ * contention in ControllerStateStore. The reader burns roughly a frame's worth of script work
+ * between snapshots, so events outnumber frames the way they do on the console.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputStreamBenchmark {
+    @Param({"4"})
+    public int players;
+
+    @Param({"20000"})
+    public long frameTokens;
+
+    private ControllerStateStore store;
+    private StateWriter writer;
+    private float[] axes = new float[6];
+    private float[] snapshot;
+    private int event = 0;
+
+    @Setup
+    public void Setup() {
+        store = new ControllerStateStore(players);
+        AxisFilter[] filters = new AxisFilter[players];
+        for (int i=0; i<players; i++) {
+            filters[i] = new AxisFilter();
+        }
+        writer = new StateWriter(store, filters);
+        snapshot = new float[OuyaUnityActivity.SNAPSHOT_HEADER + players * OuyaUnityActivity.SNAPSHOT_STRIDE];
+    }
+
+    @Benchmark
+    @Group("stream")
+    @GroupThreads(1)
+    public boolean Events() {
+        int n = event++;
+        axes[n & 3] = (n & 1023) / 1024f;
+        return writer.OnAxes(n % players, 0, axes, n);
+    }
+
+    @Benchmark
+    @Group("stream")
+    @GroupThreads(1)
+    public float[] Frames() {
+        Blackhole.consumeCPU(frameTokens);
+        if (store.Acquire()) {
+            ControllerState[] states = store.GetFrontStates();
+            for (int i=0; i<players; i++) {
+                states[i].WriteSnapshot(snapshot, OuyaUnityActivity.SNAPSHOT_HEADER + i * OuyaUnityActivity.SNAPSHOT_STRIDE);
+            }
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,46 @@
+package com.goodhustle.ouyaunitybridge.benchmarks;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.PurchaseEnvelopeBuilder;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+import tv.ouya.console.api.Purchasable;
+
+/**
+ * Encrypting a purchase request, as requestPurchase does, with a 2048 bit RSA key like the
+ * developer keys the store hands out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PurchaseBenchmark {
+    private PurchaseEnvelopeBuilder envelopes;
+
+    @Setup
+    public void Setup() throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        // Refill spare keys inline, like a background thread that always keeps up.
+        envelopes = new PurchaseEnvelopeBuilder(generator.generateKeyPair().getPublic(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        envelopes.Warm();
+    }
+
+    @Benchmark
+    public Purchasable PurchaseEnvelope() throws Exception {
+        return envelopes.Build("product_0", envelopes.NewUniqueId());
+    }
+}
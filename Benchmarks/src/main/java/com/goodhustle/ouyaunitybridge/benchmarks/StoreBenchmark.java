@@ -0,0 +1,48 @@
+package com.goodhustle.ouyaunitybridge.benchmarks;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.BridgeJsonWriter;
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import tv.ouya.console.api.Receipt;
+
+/**
+ * Serializing receipts for Unity, as addReceipts does. ReceiptsGson is what addReceipts did
+ * before BridgeJsonWriter, kept as a reference point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    @Param({"10", "100", "1000"})
+    public int receiptCount;
+
+    private List<Receipt> receipts;
+    private BridgeJsonWriter jsonWriter;
+
+    @Setup
+    public void Setup() {
+        receipts = new ArrayList<Receipt>(receiptCount);
+        long now = System.currentTimeMillis();
+        for (int i=0; i<receiptCount; i++) {
+            receipts.add(new Receipt("product_" + i, 99 + i, new Date(now - i * 3600000L), new Date(now)));
+        }
+        jsonWriter = new BridgeJsonWriter();
+    }
+
+    @Benchmark
+    public String Receipts() {
+        return jsonWriter.WriteReceipts(receipts);
+    }
+
+    @Benchmark
+    public String ReceiptsGson() {
+        return new Gson().toJson(receipts);
+    }
+}
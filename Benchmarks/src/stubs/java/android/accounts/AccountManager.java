@@ -0,0 +1,5 @@
+package android.accounts;
+
+public class AccountManager {
+    public static final String LOGIN_ACCOUNTS_CHANGED_ACTION = "android.accounts.LOGIN_ACCOUNTS_CHANGED";
+}
@@ -0,0 +1,34 @@
+package android.app;
+
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.View;
+
+public class Activity extends ContextWrapper {
+    public static final int RESULT_OK = -1;
+    public static final int MODE_PRIVATE = 0;
+
+    protected void onCreate(Bundle savedInstanceState) {}
+    protected void onStart() {}
+    protected void onStop() {}
+    protected void onDestroy() {}
+    protected void onPause() {}
+    protected void onResume() {}
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {}
+    protected void onSaveInstanceState(Bundle outState) {}
+
+    public boolean onKeyDown(int keyCode, KeyEvent event) { return false; }
+    public boolean onKeyUp(int keyCode, KeyEvent event) { return false; }
+    public boolean onGenericMotionEvent(MotionEvent event) { return false; }
+    public boolean dispatchTouchEvent(MotionEvent event) { return false; }
+    public boolean dispatchGenericMotionEvent(MotionEvent event) { return false; }
+
+    public void setContentView(int layoutResId) {}
+    public View findViewById(int id) { return null; }
+    public boolean isFinishing() { return false; }
+    public String getString(int resId) { return null; }
+    public void runOnUiThread(Runnable action) { action.run(); }
+}
@@ -0,0 +1,15 @@
+package android.app;
+
+import android.content.Context;
+import android.content.DialogInterface;
+
+public class AlertDialog {
+    public static class Builder {
+        public Builder(Context context) {}
+        public Builder setTitle(String title) { return this; }
+        public Builder setMessage(String message) { return this; }
+        public Builder setPositiveButton(int textId, DialogInterface.OnClickListener listener) { return this; }
+        public Builder setNegativeButton(int textId, DialogInterface.OnClickListener listener) { return this; }
+        public AlertDialog show() { return new AlertDialog(); }
+    }
+}
@@ -0,0 +1,18 @@
+package android.content;
+
+import android.os.Looper;
+import java.io.File;
+
+public abstract class Context {
+    public static final String INPUT_SERVICE = "input";
+
+    public Object getSystemService(String name) { return null; }
+    public Context getBaseContext() { return this; }
+    public Context getApplicationContext() { return this; }
+    public SharedPreferences getSharedPreferences(String name, int mode) { return null; }
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) { return null; }
+    public void unregisterReceiver(BroadcastReceiver receiver) {}
+    public File getCacheDir() { return new File(System.getProperty("java.io.tmpdir")); }
+    public File getFilesDir() { return new File(System.getProperty("java.io.tmpdir")); }
+    public Looper getMainLooper() { return Looper.getMainLooper(); }
+}
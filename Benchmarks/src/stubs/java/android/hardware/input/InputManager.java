@@ -0,0 +1,17 @@
+package android.hardware.input;
+
+import android.os.Handler;
+import android.view.InputDevice;
+
+public final class InputManager {
+    public interface InputDeviceListener {
+        void onInputDeviceAdded(int deviceId);
+        void onInputDeviceChanged(int deviceId);
+        void onInputDeviceRemoved(int deviceId);
+    }
+
+    public void registerInputDeviceListener(InputDeviceListener listener, Handler handler) {}
+    public void unregisterInputDeviceListener(InputDeviceListener listener) {}
+    public InputDevice getInputDevice(int id) { return InputDevice.getDevice(id); }
+    public int[] getInputDeviceIds() { return InputDevice.getDeviceIds(); }
+}
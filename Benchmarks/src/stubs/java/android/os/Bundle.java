@@ -0,0 +1,10 @@
+package android.os;
+
+public final class Bundle {
+    public static final Bundle EMPTY = new Bundle();
+
+    public boolean containsKey(String key) { return false; }
+    public Parcelable[] getParcelableArray(String key) { return null; }
+    public int getInt(String key, int defaultValue) { return defaultValue; }
+    public void putParcelableArray(String key, Parcelable[] value) {}
+}
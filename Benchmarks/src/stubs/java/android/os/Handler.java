@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Accepts and drops every message: nothing in the benchmarks waits on a looper.
+ */
+public class Handler {
+    public Handler() {}
+    public Handler(Looper looper) {}
+
+    public final boolean post(Runnable r) { return true; }
+    public final boolean postDelayed(Runnable r, long delayMillis) { return true; }
+    public final boolean postAtTime(Runnable r, long uptimeMillis) { return true; }
+    public final void removeCallbacks(Runnable r) {}
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+public interface Parcelable {
+    int describeContents();
+    void writeToParcel(Parcel dest, int flags);
+
+    interface Creator<T> {
+        T createFromParcel(Parcel source);
+        T[] newArray(int size);
+    }
+}
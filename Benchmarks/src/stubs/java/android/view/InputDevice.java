@@ -0,0 +1,55 @@
+package android.view;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Devices come from a static registry that benchmarks fill with Add.
+ */
+public final class InputDevice {
+    public static final int SOURCE_CLASS_POINTER = 0x00000002;
+    public static final int SOURCE_CLASS_POSITION = 0x00000008;
+    public static final int SOURCE_CLASS_JOYSTICK = 0x00000010;
+    public static final int SOURCE_DPAD = 0x00000201;
+    public static final int SOURCE_GAMEPAD = 0x00000401;
+    public static final int SOURCE_TOUCHSCREEN = 0x00001002;
+    public static final int SOURCE_MOUSE = 0x00002002;
+    public static final int SOURCE_TOUCHPAD = 0x00100008;
+    public static final int SOURCE_JOYSTICK = 0x01000010;
+
+    private static final Map<Integer, InputDevice> devices = new TreeMap<Integer, InputDevice>();
+
+    private final int id;
+    private final String name;
+    private final String descriptor;
+    private final int sources;
+
+    public InputDevice(int id, String name, String descriptor, int sources) {
+        this.id = id;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.sources = sources;
+    }
+
+    public static synchronized void Add(InputDevice device) { devices.put(device.id, device); }
+    public static synchronized void Remove(int id) { devices.remove(id); }
+
+    public static synchronized int[] getDeviceIds() {
+        int[] ids = new int[devices.size()];
+        int i = 0;
+        for (Integer id : devices.keySet()) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    public static synchronized InputDevice getDevice(int id) { return devices.get(id); }
+
+    public int getId() { return id; }
+    public String getName() { return name; }
+    public String getDescriptor() { return descriptor; }
+    public boolean isVirtual() { return id < 0; }
+    public int getSources() { return sources; }
+    public int getVendorId() { return 0; }
+    public int getProductId() { return 0; }
+}
@@ -0,0 +1,9 @@
+package android.view;
+
+public abstract class InputEvent {
+    public abstract int getDeviceId();
+    public abstract int getSource();
+    public abstract long getEventTime();
+
+    public InputDevice getDevice() { return InputDevice.getDevice(getDeviceId()); }
+}
@@ -0,0 +1,28 @@
+package android.view;
+
+public class KeyEvent extends InputEvent {
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int KEYCODE_BACK = 4;
+    public static final int KEYCODE_MENU = 82;
+    public static final int KEYCODE_BUTTON_A = 96;
+
+    private final long eventTime;
+    private final int action;
+    private final int keyCode;
+
+    public KeyEvent(long downTime, long eventTime, int action, int code, int repeat) {
+        this.eventTime = eventTime;
+        this.action = action;
+        this.keyCode = code;
+    }
+
+    public static int getMaxKeyCode() { return 220; }
+
+    public int getDeviceId() { return 0; }
+    public int getSource() { return 0; }
+    public long getEventTime() { return eventTime; }
+    public int getKeyCode() { return keyCode; }
+    public int getAction() { return action; }
+    public int getRepeatCount() { return 0; }
+}
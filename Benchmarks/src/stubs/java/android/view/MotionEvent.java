@@ -0,0 +1,75 @@
+package android.view;
+
+public final class MotionEvent extends InputEvent {
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+    public static final int ACTION_CANCEL = 3;
+    public static final int ACTION_HOVER_MOVE = 7;
+    public static final int ACTION_SCROLL = 8;
+    public static final int ACTION_HOVER_ENTER = 9;
+    public static final int ACTION_HOVER_EXIT = 10;
+    public static final int ACTION_MASK = 0xff;
+    public static final int BUTTON_PRIMARY = 1;
+    public static final int BUTTON_SECONDARY = 2;
+
+    public static final int AXIS_X = 0;
+    public static final int AXIS_Y = 1;
+    public static final int AXIS_VSCROLL = 9;
+    public static final int AXIS_Z = 11;
+    public static final int AXIS_RX = 12;
+    public static final int AXIS_RY = 13;
+    public static final int AXIS_RZ = 14;
+    public static final int AXIS_HAT_X = 15;
+    public static final int AXIS_HAT_Y = 16;
+    public static final int AXIS_LTRIGGER = 17;
+    public static final int AXIS_RTRIGGER = 18;
+    public static final int AXIS_GAS = 22;
+    public static final int AXIS_BRAKE = 23;
+    public static final int AXIS_RELATIVE_X = 27;
+    public static final int AXIS_RELATIVE_Y = 28;
+
+    private final float[] axes = new float[48];
+    private int deviceId;
+    private int source;
+    private int action = ACTION_MOVE;
+    private int buttonState;
+    private long eventTime;
+
+    /**
+     * A mutable event for benchmarks to reuse; Android's own are obtained from a pool.
+     */
+    public MotionEvent(int deviceId, int source) {
+        this.deviceId = deviceId;
+        this.source = source;
+    }
+
+    public static MotionEvent obtain(long downTime, long eventTime, int action, float x, float y, int metaState) {
+        MotionEvent event = new MotionEvent(0, 0);
+        event.eventTime = eventTime;
+        event.action = action;
+        event.axes[AXIS_X] = x;
+        event.axes[AXIS_Y] = y;
+        return event;
+    }
+
+    public void recycle() {}
+
+    public void SetAxisValue(int axis, float value) { axes[axis] = value; }
+    public void SetEventTime(long eventTime) { this.eventTime = eventTime; }
+    public void SetAction(int action) { this.action = action; }
+    public void SetButtonState(int buttonState) { this.buttonState = buttonState; }
+
+    public int getDeviceId() { return deviceId; }
+    public int getSource() { return source; }
+    public long getEventTime() { return eventTime; }
+    public int getAction() { return action; }
+    public int getActionMasked() { return action & ACTION_MASK; }
+    public int getButtonState() { return buttonState; }
+    public float getAxisValue(int axis) { return axes[axis]; }
+    public float getX() { return axes[AXIS_X]; }
+    public float getY() { return axes[AXIS_Y]; }
+    public int getHistorySize() { return 0; }
+    public float getHistoricalAxisValue(int axis, int pos) { return axes[axis]; }
+    public long getHistoricalEventTime(int pos) { return eventTime; }
+}
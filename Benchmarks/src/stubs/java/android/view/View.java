@@ -0,0 +1,5 @@
+package android.view;
+
+public class View {
+    public void setFocusableInTouchMode(boolean focusableInTouchMode) {}
+}
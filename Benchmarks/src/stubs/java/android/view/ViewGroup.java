@@ -0,0 +1,11 @@
+package android.view;
+
+public class ViewGroup extends View {
+    public void addView(View child, int index, ViewGroup.LayoutParams params) {}
+
+    public static class LayoutParams {
+        public static final int FILL_PARENT = -1;
+
+        public LayoutParams(int width, int height) {}
+    }
+}
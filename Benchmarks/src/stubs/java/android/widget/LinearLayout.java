@@ -0,0 +1,9 @@
+package android.widget;
+
+import android.view.ViewGroup;
+
+public class LinearLayout extends ViewGroup {
+    public static class LayoutParams extends ViewGroup.LayoutParams {
+        public LayoutParams(int width, int height) { super(width, height); }
+    }
+}
@@ -0,0 +1,27 @@
+package com.unity3d.player;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.view.KeyEvent;
+import android.view.View;
+
+/**
+ * Swallows messages to Unity; the benchmarks measure the bridge up to the point it calls out.
+ */
+public class UnityPlayer {
+    public static Activity currentActivity;
+
+    public UnityPlayer(Context context) {}
+
+    public static void UnitySendMessage(String gameObject, String method, String message) {}
+
+    public Bundle getSettings() { return Bundle.EMPTY; }
+    public void init(int glesMode, boolean trueColor8888) {}
+    public View getView() { return new View(); }
+    public void pause() {}
+    public void resume() {}
+    public void quit() {}
+    public boolean onKeyDown(int keyCode, KeyEvent event) { return false; }
+    public boolean onKeyUp(int keyCode, KeyEvent event) { return false; }
+}
@@ -0,0 +1,6 @@
+package com.unity3d.player;
+
+import android.app.Activity;
+
+public class UnityPlayerActivity extends Activity {
+}
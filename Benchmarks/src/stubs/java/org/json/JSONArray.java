@@ -0,0 +1,5 @@
+package org.json;
+
+public class JSONArray {
+    public int length() { return 0; }
+}
@@ -0,0 +1,83 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.BridgeJsonWriter;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.Device;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.DeviceChanges;
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import tv.ouya.console.api.Product;
+import tv.ouya.console.api.Receipt;
+
+/**
+ * BridgeJsonWriter replaced Gson, so its output is checked against Gson's.
+ */
+public class BridgeJsonWriterTest {
+    private final BridgeJsonWriter writer = new BridgeJsonWriter();
+    private final Gson gson = new Gson();
+
+    @Test
+    public void ProductsMatchGson() {
+        List<Product> products = Arrays.asList(
+            new Product("sword", "Sword of \"Testing\"", 99),
+            new Product("shield", null, 0),
+            new Product("potion", "Potion <x2> & more", -1));
+        assertEquals(gson.toJson(products), writer.WriteProducts(products));
+        assertEquals(gson.toJson(new ArrayList<Product>()), writer.WriteProducts(new ArrayList<Product>()));
+        assertEquals(gson.toJson(null), writer.WriteProducts(null));
+    }
+
+    @Test
+    public void EscapesMatchGson() {
+        StringBuilder all = new StringBuilder();
+        for (char c=0; c<0x80; c++) {
+            all.append(c);
+        }
+        all.append("\u00e9\u2028\u2029\u20ac\ud83c\udfae\uffff");
+        List<Product> products = new ArrayList<Product>();
+        products.add(new Product("all", all.toString(), 1));
+        for (int i=0; i<all.length(); i++) {
+            // One character at a time, so a mismatch names the character.
+            String name = String.valueOf(all.charAt(i));
+            List<Product> one = Arrays.asList(new Product("x", name, 1));
+            assertEquals("U+" + Integer.toHexString(all.charAt(i)), gson.toJson(one), writer.WriteProducts(one));
+        }
+        assertEquals(gson.toJson(products), writer.WriteProducts(products));
+    }
+
+    @Test
+    public void ReceiptsMatchGson() {
+        long now = 1381000000000L;
+        List<Receipt> receipts = Arrays.asList(
+            new Receipt("sword", 99, new Date(now), new Date(now + 1000)),
+            new Receipt("shield", 0, null, new Date(now)),
+            new Receipt(null, 5, new Date(now - 86400000L), null));
+        assertEquals(gson.toJson(receipts), writer.WriteReceipts(receipts));
+        assertEquals(gson.toJson(null), writer.WriteReceipts(null));
+    }
+
+    @Test
+    public void DeviceChanges() {
+        Device added = new Device();
+        added.id = 7;
+        added.player = 1;
+        added.name = "OUYA Game Controller";
+        DeviceChanges changes = new DeviceChanges();
+        changes.reset = true;
+        changes.added.add(added);
+        changes.removed.add(3);
+        assertEquals("{\"reset\":true,\"added\":[{\"id\":7,\"player\":1,\"name\":\"OUYA Game Controller\"}],\"removed\":[3]}",
+            writer.WriteDeviceChanges(changes));
+    }
+
+    @Test
+    public void PurchaseRequest() {
+        assertEquals("{\"uuid\":\"abc\",\"identifier\":\"sword\",\"testing\":\"true\"}",
+            writer.WritePurchaseRequest("abc", "sword"));
+    }
+}
@@ -0,0 +1,57 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.BridgeJsonWriter;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.BridgeMessenger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class BridgeMessengerTest {
+    private final BridgeMessenger messenger = new BridgeMessenger(new BridgeJsonWriter());
+
+    @Test
+    public void DrainReturnsQueuedRecords() {
+        messenger.SetBinaryEnabled(true);
+        assertNull(messenger.Drain());
+        messenger.SendMenuButtonPressed(3);
+        messenger.SendPurchased("sword");
+        ByteBuffer data = ByteBuffer.wrap(messenger.Drain());
+        assertEquals(BridgeMessenger.MESSAGE_MENU_BUTTON, data.get());
+        assertEquals(4, data.getInt());
+        assertEquals(3, data.getInt());
+        assertEquals(BridgeMessenger.MESSAGE_PURCHASED, data.get());
+        assertEquals(9, data.getInt());
+        assertEquals(5, data.getInt());
+        byte[] id = new byte[5];
+        data.get(id);
+        assertEquals("sword", new String(id));
+        assertFalse(data.hasRemaining());
+        assertNull(messenger.Drain());
+    }
+
+    @Test
+    public void RecordsThatDoNotFitAreDroppedWhole() {
+        messenger.SetBinaryEnabled(true);
+        char[] chars = new char[BridgeMessenger.MAX_QUEUE_BYTES / 4];
+        Arrays.fill(chars, 'x');
+        String quarter = new String(chars);
+        for (int i=0; i<3; i++) {
+            messenger.SendGamerUuid(quarter);
+        }
+        assertEquals(0, messenger.GetOverflowCount());
+        messenger.SendGamerUuid(quarter);
+        assertEquals(1, messenger.GetOverflowCount());
+        // A smaller record still fits after the dropped one.
+        messenger.SendMenuButtonPressed(1);
+        assertEquals(1, messenger.GetOverflowCount());
+
+        byte[] drained = messenger.Drain();
+        assertEquals(3 * (9 + quarter.length()) + 9, drained.length);
+        assertEquals(BridgeMessenger.MESSAGE_MENU_BUTTON, drained[drained.length - 9]);
+
+        messenger.SendGamerUuid(quarter);
+        assertEquals(9 + quarter.length(), messenger.Drain().length);
+    }
+}
@@ -0,0 +1,239 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ComboRecognizer;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerState;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import tv.ouya.console.api.OuyaController;
+
+public class ComboRecognizerTest {
+    private final ComboRecognizer recognizer = new ComboRecognizer(2, 64);
+    private final ControllerState state = new ControllerState();
+
+    // Moves player 0's left stick and feeds the change in, as the input engine does.
+    private void Stick(float x, float y, long eventTime) {
+        state.AxisLSX = x;
+        state.AxisLSY = y;
+        recognizer.Input(0, state, 0, false, eventTime);
+    }
+
+    private void Press(int keyCode, long eventTime) {
+        state.SetButtonDown(ControllerState.ButtonForKeyCode(keyCode));
+        recognizer.Input(0, state, keyCode, true, eventTime);
+    }
+
+    private void Release(int keyCode, long eventTime) {
+        state.SetButtonUp(ControllerState.ButtonForKeyCode(keyCode));
+        recognizer.Input(0, state, keyCode, false, eventTime);
+    }
+
+    /**
+     * Each match drained since the last call, as "player:combo:duration@time".
+     */
+    private List<String> Matches() {
+        List<String> matches = new ArrayList<String>();
+        long[] events = recognizer.GetMatches().Drain();
+        for (int i=0; events != null && i<events.length; i+=2) {
+            long packed = events[i + 1];
+            matches.add((packed >>> 56) + ":" + ((packed >>> 32) & 0xFFFFFF) + ":"
+                + (long) Float.intBitsToFloat((int) packed) + "@" + events[i]);
+        }
+        return matches;
+    }
+
+    private static List<String> List(String... matches) {
+        List<String> list = new ArrayList<String>();
+        for (String match : matches) {
+            list.add(match);
+        }
+        return list;
+    }
+
+    @Test
+    public void QuarterCircleThenButton() {
+        recognizer.Add(1, "2 3 6 O", 200);
+        Stick(0, 1, 100);
+        Stick(1, 1, 150);
+        Stick(1, 0, 200);
+        assertTrue(Matches().isEmpty());
+        Press(OuyaController.BUTTON_O, 250);
+        assertEquals(List("0:1:150@250"), Matches());
+    }
+
+    @Test
+    public void SloppyInputStillMatches() {
+        recognizer.Add(1, "2 3 6", 200);
+        Stick(0, 1, 100);
+        Stick(-1, 1, 120);
+        Stick(0, 1, 140);
+        Stick(1, 1, 160);
+        Press(OuyaController.BUTTON_U, 170);
+        Stick(1, 0, 180);
+        // Timed from the second 2, which started the attempt that matched.
+        assertEquals(List("0:1:40@180"), Matches());
+    }
+
+    @Test
+    public void StepsWithinTheWindowMatch() {
+        recognizer.Add(1, "2 3 6", 200);
+        Stick(0, 1, 100);
+        Stick(1, 1, 300);
+        Stick(1, 0, 500);
+        assertEquals(List("0:1:400@500"), Matches());
+    }
+
+    @Test
+    public void StepsOutsideTheWindowDoNotMatch() {
+        recognizer.Add(1, "2 3 6", 200);
+        Stick(0, 1, 100);
+        Stick(1, 1, 150);
+        Stick(1, 0, 351);
+        assertTrue(Matches().isEmpty());
+    }
+
+    @Test
+    public void RepeatedDirectionMustFollowWithinTheWindow() {
+        recognizer.Add(1, "6 6", 200);
+        Stick(1, 0, 0);
+        Stick(0, 0, 50);
+        Stick(1, 0, 5000);
+        assertTrue(Matches().isEmpty());
+        Stick(0, 0, 5050);
+        Stick(1, 0, 5100);
+        assertEquals(List("0:1:100@5100"), Matches());
+    }
+
+    @Test
+    public void RepeatedButtonMustFollowWithinTheWindow() {
+        recognizer.Add(1, "O O", 200);
+        Press(OuyaController.BUTTON_O, 0);
+        Release(OuyaController.BUTTON_O, 50);
+        Press(OuyaController.BUTTON_O, 9000);
+        assertTrue(Matches().isEmpty());
+        Release(OuyaController.BUTTON_O, 9050);
+        Press(OuyaController.BUTTON_O, 9150);
+        assertEquals(List("0:1:150@9150"), Matches());
+    }
+
+    @Test
+    public void ReleaseSteps() {
+        recognizer.Add(1, "O ^O", 200);
+        Press(OuyaController.BUTTON_O, 0);
+        Release(OuyaController.BUTTON_O, 500);
+        assertTrue(Matches().isEmpty());
+        Press(OuyaController.BUTTON_O, 1000);
+        Release(OuyaController.BUTTON_O, 1100);
+        assertEquals(List("0:1:100@1100"), Matches());
+    }
+
+    @Test
+    public void NeutralSteps() {
+        recognizer.Add(1, "6 5 6", 200);
+        Stick(1, 0, 0);
+        Stick(0, 0, 300);
+        Stick(1, 0, 350);
+        assertTrue(Matches().isEmpty());
+        Stick(0, 0, 400);
+        Stick(1, 0, 450);
+        assertEquals(List("0:1:100@450"), Matches());
+    }
+
+    @Test
+    public void DPadCountsAsDirections() {
+        recognizer.Add(1, "2 6", 200);
+        Press(OuyaController.BUTTON_DPAD_DOWN, 100);
+        Release(OuyaController.BUTTON_DPAD_DOWN, 110);
+        Press(OuyaController.BUTTON_DPAD_RIGHT, 120);
+        assertEquals(List("0:1:20@120"), Matches());
+    }
+
+    @Test
+    public void ChargeNeedsTheHoldTime() {
+        recognizer.Add(1, "[4]800 6 O", 200);
+        Stick(-1, 0, 0);
+        Stick(1, 0, 500);
+        Press(OuyaController.BUTTON_O, 550);
+        assertTrue(Matches().isEmpty());
+
+        Release(OuyaController.BUTTON_O, 600);
+        Stick(-1, 0, 1000);
+        Stick(1, 0, 1900);
+        Press(OuyaController.BUTTON_O, 1950);
+        assertEquals(List("0:1:50@1950"), Matches());
+    }
+
+    @Test
+    public void ChargeHeldBeforeTheComboWasAdded() {
+        Stick(-1, 0, 0);
+        recognizer.Add(1, "[4]800 6", 200);
+        Stick(1, 0, 1000);
+        assertEquals(List("0:1:0@1000"), Matches());
+    }
+
+    @Test
+    public void ButtonChord() {
+        recognizer.Add(1, "O+U", 200);
+        Press(OuyaController.BUTTON_O, 100);
+        assertTrue(Matches().isEmpty());
+        Press(OuyaController.BUTTON_U, 110);
+        assertEquals(List("0:1:0@110"), Matches());
+    }
+
+    @Test
+    public void MirroredPlayerFacesLeft() {
+        recognizer.Add(1, "2 3 6", 200);
+        recognizer.SetMirrored(0, true);
+        Stick(0, 1, 100);
+        Stick(1, 1, 110);
+        Stick(1, 0, 120);
+        assertTrue(Matches().isEmpty());
+        Stick(0, 1, 200);
+        Stick(-1, 1, 210);
+        Stick(-1, 0, 220);
+        assertEquals(List("0:1:20@220"), Matches());
+    }
+
+    @Test
+    public void StickHysteresis() {
+        recognizer.Add(1, "6 5 6", 200);
+        Stick(0.6f, 0, 100);
+        // Still pushed past the off threshold, so no neutral in between.
+        Stick(0.4f, 0, 110);
+        Stick(0.6f, 0, 120);
+        assertTrue(Matches().isEmpty());
+        Stick(0.3f, 0, 130);
+        Stick(0.6f, 0, 140);
+        assertEquals(List("0:1:40@140"), Matches());
+    }
+
+    @Test
+    public void RemovedAndClearedCombosStopMatching() {
+        recognizer.Add(1, "O", 200);
+        recognizer.Add(2, "U", 200);
+        assertTrue(recognizer.Remove(1));
+        assertFalse(recognizer.Remove(1));
+        Press(OuyaController.BUTTON_O, 100);
+        Press(OuyaController.BUTTON_U, 110);
+        assertEquals(List("0:2:0@110"), Matches());
+        recognizer.Clear();
+        Release(OuyaController.BUTTON_U, 120);
+        Press(OuyaController.BUTTON_U, 130);
+        assertTrue(Matches().isEmpty());
+    }
+
+    @Test
+    public void BadPatternsAreRejected() {
+        String[] patterns = { "", "0", "[5]100", "[4]", "X", "O+Q", "1 2 3 4 5 6 7 8 9 1 2 3 4 5 6 7 8" };
+        for (String pattern : patterns) {
+            try {
+                recognizer.Add(1, pattern, 200);
+                fail("accepted " + pattern);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerProfile;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerProfiles;
+import org.junit.Test;
+import tv.ouya.console.api.OuyaController;
+
+public class ControllerProfileTest {
+    @Test
+    public void OuyaLayoutIsTheIdentity() {
+        ControllerProfile ouya = ControllerProfile.OUYA;
+        assertEquals(OuyaController.BUTTON_O, ouya.MapKeyCode(OuyaController.BUTTON_O));
+        assertEquals(OuyaController.BUTTON_MENU, ouya.MapKeyCode(OuyaController.BUTTON_MENU));
+        assertEquals(0, ouya.MapKeyCode(-1));
+        assertEquals(0, ouya.MapKeyCode(1000));
+        assertFalse(ouya.HasHatDpad());
+
+        MotionEvent event = new MotionEvent(1, InputDevice.SOURCE_JOYSTICK);
+        event.SetAxisValue(OuyaController.AXIS_LS_X, 0.25f);
+        event.SetAxisValue(OuyaController.AXIS_R2, 1);
+        float[] axes = new float[8];
+        ouya.ReadAxes(event, axes, 2);
+        assertEquals(0.25f, axes[2], 0);
+        assertEquals(1, axes[7], 0);
+    }
+
+    @Test
+    public void MappingRemapsKeysAndAxes() {
+        ControllerProfile profile = ControllerProfile.Parse("test", " 108=menu 99=NONE  RSX=12 LT=17*0.5+0.5 LSY=1*-1 HAT=DPAD ");
+        assertEquals(OuyaController.BUTTON_MENU, profile.MapKeyCode(108));
+        assertEquals(0, profile.MapKeyCode(99));
+        assertEquals(OuyaController.BUTTON_O, profile.MapKeyCode(OuyaController.BUTTON_O));
+        assertTrue(profile.HasHatDpad());
+
+        MotionEvent event = new MotionEvent(1, InputDevice.SOURCE_JOYSTICK);
+        event.SetAxisValue(MotionEvent.AXIS_RX, 0.75f);
+        event.SetAxisValue(MotionEvent.AXIS_LTRIGGER, -1);
+        event.SetAxisValue(MotionEvent.AXIS_Y, 0.5f);
+        float[] axes = new float[6];
+        profile.ReadAxes(event, axes, 0);
+        assertEquals(0.75f, axes[2], 0);
+        assertEquals(0, axes[4], 0);
+        assertEquals(-0.5f, axes[1], 0);
+    }
+
+    @Test
+    public void BadMappingsAreRejected() {
+        String[] mappings = { "108", "=MENU", "108=START", "300=O", "XX=1", "RSX=a", "LT=17*x", "HAT=STICK" };
+        for (String mapping : mappings) {
+            try {
+                ControllerProfile.Parse("bad", mapping);
+                fail("accepted " + mapping);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void ProfilesAreFoundByIdThenName() {
+        ControllerProfiles profiles = new ControllerProfiles();
+        assertNotNull(profiles.Find(0x045E, 0x028E, null));
+        // Before API 19 only the name is known.
+        assertNotNull(profiles.Find(0, 0, "Microsoft X-Box 360 pad"));
+        assertNull(profiles.Find(0, 0, "OUYA Game Controller"));
+
+        ControllerProfile custom = ControllerProfile.Parse("custom", "97=A");
+        profiles.Add(0x1234, 0x5678, null, custom);
+        assertSame(custom, profiles.Find(0x1234, 0x5678, "Anything"));
+        profiles.Clear();
+        assertNull(profiles.Find(0x045E, 0x028E, "Microsoft X-Box 360 pad"));
+    }
+}
@@ -0,0 +1,108 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerState;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerStateStore;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ControllerStateStoreTest {
+    @Test
+    public void AcquireOnlyAfterPublish() {
+        ControllerStateStore store = new ControllerStateStore(2);
+        assertFalse(store.Acquire());
+
+        store.GetWorkingStates()[1].AxisLSX = 0.5f;
+        store.Publish(1);
+        assertEquals(2, store.PeekDirtyPlayers());
+        assertTrue(store.Acquire());
+        assertEquals(0.5f, store.GetFrontStates()[1].AxisLSX, 0);
+        assertEquals(2, store.GetFrontDirtyPlayers());
+        assertEquals(store.GetPublishedSequence(), store.GetFrontSequence());
+
+        assertFalse(store.Acquire());
+        assertEquals(0, store.PeekDirtyPlayers());
+        assertEquals(0.5f, store.GetFrontStates()[1].AxisLSX, 0);
+    }
+
+    @Test
+    public void EdgesAndDirtyPlayersCarryOverUntilAcquired() {
+        ControllerStateStore store = new ControllerStateStore(4);
+        ControllerState[] working = store.GetWorkingStates();
+
+        working[0].SetButtonDown(ControllerState.BUTTON_O);
+        store.Publish(0);
+        working[0].SetButtonUp(ControllerState.BUTTON_O);
+        store.Publish(0);
+        working[3].SetButtonDown(ControllerState.BUTTON_A);
+        store.Publish(3);
+
+        assertTrue(store.Acquire());
+        ControllerState front = store.GetFrontStates()[0];
+        assertFalse(front.GetButton(ControllerState.BUTTON_O));
+        assertEquals(ControllerState.BUTTON_O, front.ButtonsPressed);
+        assertEquals(ControllerState.BUTTON_O, front.ButtonsReleased);
+        assertEquals(ControllerState.BUTTON_A, store.GetFrontStates()[3].ButtonsPressed);
+        assertEquals(1 | 8, store.GetFrontDirtyPlayers());
+
+        // Taken edges are not delivered twice.
+        store.Publish(3);
+        assertTrue(store.Acquire());
+        assertEquals(0, store.GetFrontStates()[0].ButtonsPressed);
+        assertEquals(0, store.GetFrontStates()[3].ButtonsPressed);
+        assertTrue(store.GetFrontStates()[3].GetButton(ControllerState.BUTTON_A));
+        assertEquals(8, store.GetFrontDirtyPlayers());
+    }
+
+    @Test
+    public void ReaderNeverSeesATornOrLostFrame() throws Exception {
+        final int players = 4;
+        final int publishes = 200000;
+        final ControllerStateStore store = new ControllerStateStore(players);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ControllerState[] working = store.GetWorkingStates();
+                for (int n=1; n<=publishes; n++) {
+                    for (int p=0; p<players; p++) {
+                        working[p].AxisLSX = n;
+                        working[p].AxisRT = n;
+                    }
+                    // A tap every publish, which the reader must see at least once per acquire.
+                    working[n % players].SetButtonDown(ControllerState.BUTTON_U);
+                    working[n % players].SetButtonUp(ControllerState.BUTTON_U);
+                    store.Publish();
+                }
+            }
+        });
+        writer.start();
+
+        float last = 0;
+        int pressedPlayers = 0;
+        while (last < publishes) {
+            if (!store.Acquire()) {
+                if (failure.get() != null || !writer.isAlive() && (store.PeekDirtyPlayers() == 0)) {
+                    break;
+                }
+                continue;
+            }
+            ControllerState[] front = store.GetFrontStates();
+            float value = front[0].AxisLSX;
+            assertTrue("frames went backwards", value > last);
+            for (int p=0; p<players; p++) {
+                assertEquals("torn frame", value, front[p].AxisLSX, 0);
+                assertEquals("torn frame", value, front[p].AxisRT, 0);
+                if ((front[p].ButtonsPressed & ControllerState.BUTTON_U) != 0) {
+                    pressedPlayers |= 1 << p;
+                }
+            }
+            assertEquals((long) value, store.GetFrontSequence());
+            last = value;
+        }
+        writer.join();
+        assertEquals(publishes, last, 0);
+        assertEquals((1 << players) - 1, pressedPlayers);
+    }
+}
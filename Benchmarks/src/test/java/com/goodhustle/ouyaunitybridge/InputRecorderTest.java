@@ -0,0 +1,160 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.ControllerState;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.InputRecorder;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.InputReplayer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import tv.ouya.console.api.OuyaController;
+
+public class InputRecorderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Writes down every replayed input as a line of text.
+     */
+    private static class Log implements InputReplayer.Target {
+        final List<String> lines = new ArrayList<String>();
+
+        @Override
+        public boolean OnKey(int playerNum, int deviceId, int keyCode, boolean down, long eventTime) {
+            lines.add(eventTime + " key " + playerNum + " " + deviceId + " " + keyCode + " " + down);
+            return true;
+        }
+
+        @Override
+        public boolean OnAxes(int playerNum, int deviceId, float[] axes, long eventTime) {
+            lines.add(eventTime + " axes " + playerNum + " " + deviceId + " " + Arrays.toString(axes));
+            return true;
+        }
+
+        @Override
+        public boolean OnPointer(int playerNum, int deviceId, int flags, float x, float y, long eventTime) {
+            lines.add(eventTime + " pointer " + playerNum + " " + deviceId + " " + flags + " " + x + " " + y);
+            return true;
+        }
+    }
+
+    private File Record() throws IOException {
+        File file = folder.newFile("input.rec");
+        InputRecorder recorder = new InputRecorder(file, DIRECT);
+        recorder.RecordKey(0, 11, OuyaController.BUTTON_O, true, 1000);
+        recorder.RecordAxes(1, 12, new float[] { 0.5f, -0.25f, 0, 0, 1, 0 }, 1010);
+        // Unchanged axes are not recorded again.
+        recorder.RecordAxes(1, 12, new float[] { 0.5f, -0.25f, 0, 0, 1, 0 }, 1015);
+        recorder.RecordAxes(1, 12, new float[] { 0.5f, 0.75f, 0, 0, 1, 0 }, 1020);
+        recorder.RecordPointer(0, 11, ControllerState.POINTER_HOVER | ControllerState.POINTER_DOWN, 320, 240.5f, 1030);
+        recorder.RecordKey(0, 11, OuyaController.BUTTON_O, false, 1100);
+        assertEquals(5, recorder.GetRecordCount());
+        recorder.Close();
+        assertFalse(recorder.HasFailed());
+        return file;
+    }
+
+    @Test
+    public void RoundTrip() throws IOException {
+        InputReplayer replayer = InputReplayer.Open(Record(), 0);
+        replayer.Start(5000);
+        Log log = new Log();
+        assertEquals(-1, replayer.Step(5000, log));
+        assertEquals(5, replayer.GetRecordCount());
+        assertEquals(Arrays.asList(
+            "5000 key 0 11 " + OuyaController.BUTTON_O + " true",
+            "5000 axes 1 12 [0.5, -0.25, 0.0, 0.0, 1.0, 0.0]",
+            "5000 axes 1 12 [0.5, 0.75, 0.0, 0.0, 1.0, 0.0]",
+            "5000 pointer 0 11 3 320.0 240.5",
+            "5000 key 0 11 " + OuyaController.BUTTON_O + " false"), log.lines);
+    }
+
+    @Test
+    public void ReplaysAtTheRecordedPace() throws IOException {
+        InputReplayer replayer = InputReplayer.Open(Record(), 2);
+        replayer.Start(0);
+        Log log = new Log();
+        assertEquals(5, replayer.Step(0, log));
+        assertEquals(1, log.lines.size());
+        assertEquals(10, replayer.Step(9, log));
+        assertEquals(2, log.lines.size());
+        assertEquals(15, replayer.Step(10, log));
+        assertEquals(3, log.lines.size());
+        assertEquals(-1, replayer.Step(50, log));
+        assertEquals(5, log.lines.size());
+        assertTrue(log.lines.get(4).startsWith("50 key"));
+    }
+
+    @Test
+    public void StepAppliesAtMostTheGivenRecords() throws IOException {
+        InputReplayer replayer = InputReplayer.Open(Record(), 0);
+        replayer.Start(5000);
+        Log log = new Log();
+        assertEquals(5000, replayer.Step(5000, log, 2));
+        assertEquals(2, log.lines.size());
+        assertEquals(5000, replayer.Step(5000, log, 2));
+        assertEquals(4, log.lines.size());
+        assertEquals(-1, replayer.Step(5000, log, 2));
+        assertEquals(5, log.lines.size());
+        assertEquals(5, replayer.GetRecordCount());
+    }
+
+    @Test
+    public void TruncatedRecordIsIgnored() throws IOException {
+        File file = Record();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        InputReplayer replayer = InputReplayer.Open(file, 0);
+        Log log = new Log();
+        assertEquals(-1, replayer.Step(0, log));
+        assertEquals(4, log.lines.size());
+    }
+
+    @Test
+    public void ReplaysVersionOneRecordings() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(64);
+        data.putInt(InputRecorder.MAGIC).putInt(1);
+        data.put((byte) InputRecorder.TYPE_KEY_DOWN).put((byte) 2).putInt(9).putInt(0).putShort((short) OuyaController.BUTTON_A);
+        data.flip();
+        InputReplayer replayer = new InputReplayer(data, 0);
+        Log log = new Log();
+        replayer.Step(0, log);
+        assertEquals(Arrays.asList("0 key 2 9 " + OuyaController.BUTTON_A + " true"), log.lines);
+    }
+
+    @Test(expected = IOException.class)
+    public void RejectsOtherFiles() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(8);
+        data.putInt(0x12345678).putInt(1);
+        data.flip();
+        new InputReplayer(data, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void RejectsNewerVersions() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(8);
+        data.putInt(InputRecorder.MAGIC).putInt(InputRecorder.VERSION + 1);
+        data.flip();
+        new InputReplayer(data, 0);
+    }
+}
@@ -0,0 +1,68 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.PlayerSlots;
+import org.junit.Test;
+
+public class PlayerSlotsTest {
+    private static final int NONE = -1;
+
+    @Test
+    public void SdkNumberedControllersKeepTheirNumber() {
+        PlayerSlots slots = new PlayerSlots(8, 4);
+        assertEquals(0, slots.Claim(10, "a", 2));
+        assertEquals(2, slots.GetSlot(10));
+        assertEquals(3, slots.GetSlotCount());
+        // Claiming again changes nothing.
+        assertEquals(0, slots.Claim(10, "a", 2));
+    }
+
+    @Test
+    public void OtherControllersGoAfterTheReservedSlots() {
+        PlayerSlots slots = new PlayerSlots(6, 4);
+        assertEquals(4, slots.Assign(20, "x"));
+        assertEquals(5, slots.Assign(21, "y"));
+        assertEquals(NONE, slots.Assign(22, "z"));
+        // The SDK's slots stay free for its controllers.
+        assertEquals(0, slots.Claim(10, "a", 0));
+        assertEquals(0, slots.GetSlot(10));
+    }
+
+    @Test
+    public void ClaimReportsSlotsThatChangedHands() {
+        PlayerSlots slots = new PlayerSlots(4, 4);
+        slots.Claim(10, "a", 0);
+        // Renumbered by the SDK: its old slot is vacated.
+        assertEquals(1, slots.Claim(10, "a", 1));
+        assertEquals(1, slots.GetSlot(10));
+        // A new controller given the same number displaces the stale one.
+        assertEquals(2, slots.Claim(11, "b", 1));
+        assertEquals(1, slots.GetSlot(11));
+        assertEquals(NONE, slots.GetSlot(10));
+    }
+
+    @Test
+    public void ControllersKeepTheirSlotWhileConnected() {
+        PlayerSlots slots = new PlayerSlots(2, 0);
+        assertEquals(0, slots.Assign(20, "x"));
+        assertEquals(1, slots.Assign(21, "y"));
+        assertEquals(0, slots.Assign(20, "x"));
+        assertEquals(NONE, slots.Assign(22, "z"));
+        assertEquals(1, slots.GetSlot(21));
+        assertEquals(NONE, slots.GetSlot(22));
+    }
+
+    @Test
+    public void ReconnectingControllerGetsItsSlotBack() {
+        PlayerSlots slots = new PlayerSlots(8, 0);
+        assertEquals(0, slots.Assign(20, "x"));
+        assertEquals(1, slots.Assign(21, "y"));
+        assertEquals(1, slots.Release(20));
+        // A newcomer prefers a slot nobody has used.
+        assertEquals(2, slots.Assign(22, "z"));
+        assertEquals(0, slots.Assign(23, "x"));
+        assertEquals(2 | 4, slots.ReleaseMissing(new int[] { 23 }));
+        assertEquals(3, slots.GetSlotCount());
+    }
+}
@@ -0,0 +1,130 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import android.os.Bundle;
+import android.os.Handler;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.RequestCoalescer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.ouya.console.api.OuyaResponseListener;
+
+public class RequestCoalescerTest {
+    private long minInterval;
+
+    /**
+     * Holds on to the listener of every request it starts, for the test to complete.
+     */
+    private static class FakeCoalescer extends RequestCoalescer<String> {
+        final List<OuyaResponseListener<String>> started = new ArrayList<OuyaResponseListener<String>>();
+
+        FakeCoalescer() {
+            super(new Handler());
+        }
+
+        @Override
+        protected void Start(OuyaResponseListener<String> listener) {
+            started.add(listener);
+        }
+    }
+
+    private static class Result implements OuyaResponseListener<String> {
+        final List<String> results = new ArrayList<String>();
+        int failures = 0;
+
+        @Override
+        public void onSuccess(String result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
+            failures++;
+        }
+
+        @Override
+        public void onCancel() {
+        }
+    }
+
+    @Before
+    public void Setup() {
+        minInterval = OuyaUnityActivity.STORE_REQUEST_MIN_INTERVAL_MS;
+        // The stub Handler drops delayed messages, so nothing may wait on the interval.
+        OuyaUnityActivity.STORE_REQUEST_MIN_INTERVAL_MS = 0;
+    }
+
+    @After
+    public void TearDown() {
+        OuyaUnityActivity.STORE_REQUEST_MIN_INTERVAL_MS = minInterval;
+    }
+
+    @Test
+    public void RequestsInFlightShareOneResult() {
+        FakeCoalescer coalescer = new FakeCoalescer();
+        Result first = new Result();
+        Result second = new Result();
+        coalescer.Request(first, false);
+        coalescer.Request(second, false);
+        coalescer.Request(second, false);
+        assertEquals(1, coalescer.started.size());
+
+        coalescer.started.get(0).onSuccess("uuid");
+        assertEquals(1, first.results.size());
+        assertEquals("uuid", first.results.get(0));
+        assertEquals(1, second.results.size());
+
+        // Nothing was waiting, so nothing more was started.
+        assertEquals(1, coalescer.started.size());
+    }
+
+    @Test
+    public void FreshRequestFollowsTheOneInFlight() {
+        FakeCoalescer coalescer = new FakeCoalescer();
+        Result stale = new Result();
+        Result fresh = new Result();
+        coalescer.Request(stale, false);
+        coalescer.Request(fresh, true);
+        assertEquals(1, coalescer.started.size());
+
+        coalescer.started.get(0).onSuccess("old");
+        assertEquals(1, stale.results.size());
+        assertTrue(fresh.results.isEmpty());
+        assertEquals(2, coalescer.started.size());
+
+        coalescer.started.get(1).onSuccess("new");
+        assertEquals(1, stale.results.size());
+        assertEquals(1, fresh.results.size());
+        assertEquals("new", fresh.results.get(0));
+    }
+
+    @Test
+    public void FailuresReachEveryWaitingListener() {
+        FakeCoalescer coalescer = new FakeCoalescer();
+        Result first = new Result();
+        Result second = new Result();
+        coalescer.Request(first, false);
+        coalescer.Request(second, false);
+        coalescer.started.get(0).onFailure(500, "server error", null);
+        assertEquals(1, first.failures);
+        assertEquals(1, second.failures);
+
+        // The next request starts afresh.
+        coalescer.Request(first, false);
+        assertEquals(2, coalescer.started.size());
+    }
+
+    @Test
+    public void RequestsWaitForTheMinimumInterval() {
+        OuyaUnityActivity.STORE_REQUEST_MIN_INTERVAL_MS = 60000;
+        FakeCoalescer coalescer = new FakeCoalescer();
+        Result first = new Result();
+        coalescer.Request(first, false);
+        coalescer.started.get(0).onSuccess("uuid");
+        coalescer.Request(first, false);
+        assertEquals(1, coalescer.started.size());
+    }
+}
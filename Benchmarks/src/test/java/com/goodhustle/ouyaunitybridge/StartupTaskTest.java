@@ -0,0 +1,69 @@
+package com.goodhustle.ouyaunitybridge;
+
+import static org.junit.Assert.*;
+
+import android.os.Handler;
+import com.goodhustle.ouyaunitybridge.OuyaUnityActivity.StartupTask;
+import java.util.concurrent.Callable;
+import org.junit.Test;
+
+public class StartupTaskTest {
+    private static StartupTask<String> Task(Callable<String> work) {
+        return new StartupTask<String>("test", new Handler(), work);
+    }
+
+    @Test
+    public void ReturnsTheResult() {
+        StartupTask<String> task = Task(new Callable<String>() {
+            @Override
+            public String call() {
+                return "ready";
+            }
+        });
+        task.run();
+        assertEquals("ready", task.Get());
+        assertEquals("ready", task.GetIfSucceeded());
+
+        final boolean[] called = new boolean[1];
+        task.WhenDone(new Runnable() {
+            @Override
+            public void run() {
+                called[0] = true;
+            }
+        });
+        assertTrue(called[0]);
+    }
+
+    @Test
+    public void FailureOnlyThrowsFromGet() {
+        StartupTask<String> task = Task(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new Exception("no service");
+            }
+        });
+        task.run();
+        assertNull(task.GetIfSucceeded());
+        try {
+            task.Get();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("no service", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void GetWaitsForTheWork() throws Exception {
+        final StartupTask<String> task = Task(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                Thread.sleep(50);
+                return "ready";
+            }
+        });
+        Thread worker = new Thread(task);
+        worker.start();
+        assertEquals("ready", task.GetIfSucceeded());
+        worker.join();
+    }
+}
@@ -44,7 +44,9 @@ import android.os.SystemClock;
 import android.content.*;
 import android.hardware.input.InputManager; //API 16
 import android.hardware.input.InputManager.InputDeviceListener; //API 16
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Parcelable;
 import android.util.Base64;
 import android.util.Log;
@@ -59,16 +61,21 @@ import android.widget.Toast;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.google.gson.Gson;
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.*;
 import java.security.spec.X509EncodedKeySpec;
+import java.text.DateFormat;
 import java.text.ParseException;
 import java.security.GeneralSecurityException;
 
@@ -77,6 +84,16 @@ import com.unity3d.player.UnityPlayerActivity;
 import com.unity3d.player.UnityPlayerNativeActivity;
 import com.unity3d.player.UnityPlayerProxyActivity;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 import tv.ouya.console.api.OuyaController;
 
 public class OuyaUnityActivity extends Activity implements InputDeviceListener
@@ -93,6 +110,12 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
      */
     private static final int DEVICE_NOT_OUYACONTROLLER_COMPATIBLE = -1;
 
+    /**
+     * How long device notifications must be quiet before changes are sent to Unity. Bluetooth
+     * pads can deliver bursts of onInputDeviceChanged calls while connecting.
+     */
+    private static final long DEVICE_CHANGE_DEBOUNCE_MS = 100;
+
     //the Unity Player
     private UnityPlayer mUnityPlayer;
 
@@ -134,6 +157,30 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
      */
     public static boolean UNITY_PAUSE_ON_OUYA_OVERLAYS = false;
 
+    /**
+     * The number of player slots the bridge keeps, read when the activity is created. Controllers
+     * the OUYA SDK numbers always play as the SDK's player number, which matches their LED, so
+     * the first OuyaController.MAX_CONTROLLERS slots are theirs. Other controllers, such as pads
+     * read through a controller profile, get the slots after those; by default there are as many
+     * of them as reserved slots. Setting it to MAX_CONTROLLERS or less leaves those controllers
+     * without a slot, so they are ignored. Values outside 1 to PLAYER_LIMIT are clamped. Also
+     * give OuyaInput an emulated controller for every slot you want to read in Unity.
+     */
+    public static int MAX_PLAYERS = 2 * OuyaController.MAX_CONTROLLERS;
+
+    /**
+     * The most player slots the bridge supports. The mask of changed players travels in a float
+     * of the controller snapshot, which holds 24 bits exactly.
+     */
+    public static final int PLAYER_LIMIT = 24;
+
+    /**
+     * The minimum time between two receipt or gamer UUID requests to the OUYA servers, in
+     * milliseconds. Requests made sooner are merged into one that starts when the interval is up,
+     * and requests made while one is in flight share its result.
+     */
+    public static long STORE_REQUEST_MIN_INTERVAL_MS = 2000;
+
     /**
      * The saved instance state key for products
      */
@@ -144,6 +191,11 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
      */
     private static final String RECEIPTS_INSTANCE_STATE_KEY = "Receipts";
 
+    /**
+     * The file, in the app's files directory, that keeps products and receipts between launches
+     */
+    private static final String STORE_CACHE_FILE_NAME = "ouya_store_cache.bin";
+
     /**
      * The ID used to track the activity started by an authentication intent during a purchase.
      */
@@ -154,30 +206,184 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
      * the gamers UUID.
      */
     private static final int GAMER_UUID_AUTHENTICATION_ACTIVITY_ID = 2;
-    private static ControllerState[] playerStates;
+
+    /**
+     * Devices, player slots and controller state. The Unity interface below reads it; the input
+     * handlers and device listener feed it on the UI thread.
+     */
+    private static InputEngine engine;
+
+    /**
+     * Serializer shared by every message sent to Unity.
+     */
+    private static final BridgeJsonWriter jsonWriter = new BridgeJsonWriter();
+
+    /**
+     * Timings and counters for the bridge's hot paths, queried by Unity with GetMetrics.
+     */
+    private static final BridgeMetrics metrics = new BridgeMetrics();
+
+    /**
+     * Delivers every notification to the OuyaBridge object in Unity.
+     */
+    private static final BridgeMessenger messenger = new BridgeMessenger(jsonWriter);
+
+    /**
+     * Layout of the array returned by GetControllerSnapshot. It starts with a header holding the
+     * low 24 bits of the publish sequence number and the mask of players whose state changed in
+     * this snapshot (bit n for player n), followed by one record per player.
+     * The button bitmask is stored as a float, which holds it exactly since it is well
+     * below 2^24. The pointer position is in the coordinates Android reports it in, screen
+     * pixels for a cursor, and the pointer deltas add up every move since the previous
+     * snapshot. Keep these in sync with OuyaInput.cs.
+     */
+    public static final int SNAPSHOT_SEQUENCE = 0;
+    public static final int SNAPSHOT_DIRTY_PLAYERS = 1;
+    public static final int SNAPSHOT_HEADER = 2;
+    public static final int SNAPSHOT_AXIS_LSX = 0;
+    public static final int SNAPSHOT_AXIS_LSY = 1;
+    public static final int SNAPSHOT_AXIS_RSX = 2;
+    public static final int SNAPSHOT_AXIS_RSY = 3;
+    public static final int SNAPSHOT_AXIS_LT = 4;
+    public static final int SNAPSHOT_AXIS_RT = 5;
+    public static final int SNAPSHOT_BUTTONS = 6;
+    public static final int SNAPSHOT_BUTTONS_PRESSED = 7;
+    public static final int SNAPSHOT_BUTTONS_RELEASED = 8;
+    public static final int SNAPSHOT_POINTER_X = 9;
+    public static final int SNAPSHOT_POINTER_Y = 10;
+    public static final int SNAPSHOT_POINTER_DX = 11;
+    public static final int SNAPSHOT_POINTER_DY = 12;
+    public static final int SNAPSHOT_POINTER_FLAGS = 13;
+    public static final int SNAPSHOT_STRIDE = 14;
+
+    /**
+     * Every axis sample of every motion event, historical ones included, one buffer per player;
+     * null while high resolution axis mode is off.
+     */
+    private static volatile AxisSampleBuffer[] axisSamples = null;
+
 
     /**
      * The outstanding purchase request UUIDs.
      */
     private final Map<String, String> mOutstandingPurchaseRequests = new HashMap<String, String>();
-    private OuyaFacade ouyaFacade;
-    private UserManager userManager;
+
+    /**
+     * Startup work that doesn't touch rendering runs on its own thread while the Unity player
+     * boots. Anything that needs one of these either waits in Get() or, for store requests made on
+     * the UI thread, is deferred with whenStoreReady.
+     */
+    private StartupTask<OuyaFacade> mOuyaFacadeTask;
+    private StartupTask<UserManager> mUserManagerTask;
+    private StartupTask<PublicKey> mPublicKeyTask;
     private List<Product> mProductList;
-    private List<Receipt> mReceiptList;
+    private volatile List<Receipt> mReceiptList;
+
+    /**
+     * Products and receipts from the last launch. mReceiptsFromCache stays true until receipts
+     * arrive from the store, so cached receipts can be withdrawn if they belong to another gamer.
+     */
+    private StoreCache mStoreCache;
+    private volatile boolean mReceiptsFromCache = false;
+
+    /**
+     * Encrypts purchase requests, keeping its crypto objects warm between purchases. Created by
+     * getPurchaseEnvelopes once the public key is ready.
+     */
+    private PurchaseEnvelopeBuilder mPurchaseEnvelopes;
+
+    /**
+     * Runs work that should not hold up the UI thread, such as decrypting receipts.
+     */
+    private final ExecutorService mBackgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "OuyaBridgeBackground");
+            return thread;
+        }
+    });
+
+    /**
+     * The newest receipt response waiting for the background executor, and the last one it
+     * processed. Responses that arrive while one is waiting replace it, so a burst of refreshes is
+     * decrypted once, and a response identical to the last one just resends the receipts
+     * already parsed from it.
+     */
+    private final AtomicReference<String> mPendingReceiptResponse = new AtomicReference<String>();
+    private String mLastReceiptResponse;
+    private final Runnable mProcessReceipts = new Runnable() {
+        @Override
+        public void run() {
+            String receiptResponse = mPendingReceiptResponse.getAndSet(null);
+            if (receiptResponse == null) {
+                return;
+            }
+            if (receiptResponse.equals(mLastReceiptResponse)) {
+                messenger.SendReceipts(mReceiptList);
+                return;
+            }
+            processReceiptResponse(receiptResponse);
+            mLastReceiptResponse = receiptResponse;
+        }
+    };
 
     //indicates the Unity player has loaded
     private Boolean mEnableUnity = true;
     private Boolean mEnableLogging = true;
     private InputManager mInputManager = null;
     private InputManager.InputDeviceListener minputDeviceListener = null;
-    private String mGamerUuid;
+    private volatile String mGamerUuid;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mSendDeviceChanges = new Runnable() {
+        @Override
+        public void run() {
+            engine.FlushDeviceChanges();
+        }
+    };
     private IntentFilter accountsChangedFilter;
     private boolean mPaused = false;
 
     /**
-     * The cryptographic key for this application
+     * Raw axis values of the motion event being handled, indexed as in the snapshot.
      */
-    private PublicKey mPublicKey;
+    private final float[] mRawAxes = new float[InputRecorder.AXIS_COUNT];
+
+    /**
+     * The replay in progress, or null. It runs on the UI thread, one step per due record. A step
+     * applies at most REPLAY_BATCH_RECORDS and posts the rest, so a replay at speed 0, or one
+     * that fell behind, gives the UI thread back between batches instead of applying it all in
+     * one callback.
+     */
+    private static final int REPLAY_BATCH_RECORDS = 64;
+    private InputReplayer mInputReplayer;
+    private final Runnable mReplayStep = new Runnable() {
+        @Override
+        public void run() {
+            InputReplayer replayer = mInputReplayer;
+            if (replayer == null) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long next = replayer.Step(now, engine, REPLAY_BATCH_RECORDS);
+            if (next < 0) {
+                mInputReplayer = null;
+                Log.i(LOG_TAG, "Input replay finished after " + replayer.GetRecordCount() + " records");
+            } else if (next <= now) {
+                // Behind the queue's other work rather than ahead of it, as postAtTime would be
+                mHandler.post(this);
+            } else {
+                mHandler.postAtTime(this, next);
+            }
+        }
+    };
+    private boolean mAuthChangeReceiverRegistered = false;
 
     /**
      * Broadcast listener to handle re-requesting the receipts when a user has re-authenticated
@@ -186,34 +392,38 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
     private BroadcastReceiver mAuthChangeReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            // Refresh receipts
-            requestReceipts();
-            // Refresh gamer UUID
-            fetchGamerUUID();
+            // Refresh receipts and gamer UUID; a request sent before the change can't answer these
+            mGamerUuid = null;
+            checkCachedReceipts(null);
+            requestFreshReceipts();
+            mGamerUuidRequests.Request(mGamerUuidListener, true);
         }
     };
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
+        long onCreateStart = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
-        OuyaController.init(this);
+        startBackgroundInit();
 
-        // Initialize ouyaFacade
-        ouyaFacade = OuyaFacade.getInstance();
-        ouyaFacade.init(this, DEVELOPER_ID);
-        userManager = UserManager.getInstance(this);
-        playerStates = new ControllerState[OuyaController.MAX_CONTROLLERS];
-        for (int i=0; i<OuyaController.MAX_CONTROLLERS; i++)
-        {
-                playerStates[i] = new ControllerState();
+        long phaseStart = SystemClock.uptimeMillis();
+        OuyaController.init(this);
+        logStartupPhase("OuyaController.init", phaseStart);
+        int playerCount = Math.max(1, Math.min(MAX_PLAYERS, PLAYER_LIMIT));
+        if (playerCount != MAX_PLAYERS) {
+            Log.w(LOG_TAG, "MAX_PLAYERS is " + MAX_PLAYERS + " but must be between 1 and " + PLAYER_LIMIT
+                + "; using " + playerCount + " player slots");
         }
+        engine = new InputEngine(playerCount, OuyaController.MAX_CONTROLLERS, new AndroidControllerBackend(), messenger);
 
         // Create the UnityPlayer
+        phaseStart = SystemClock.uptimeMillis();
         mUnityPlayer = new UnityPlayer(this);
         int glesMode = mUnityPlayer.getSettings().getInt("gles_mode", 1);
         boolean trueColor8888 = false;
         mUnityPlayer.init(glesMode, trueColor8888);
         setContentView(R.layout.main);
+        logStartupPhase("UnityPlayer init", phaseStart);
 
         // Add the Unity view
         FrameLayout layout = (FrameLayout) findViewById(R.id.unityLayout);
@@ -244,18 +454,129 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
             }
         }
 
-        // Request the product list if it could not be restored from the savedInstanceState Bundle
-        if(mProductList == null) {
+        // Fall back to what the last launch knew so Unity doesn't wait on the store at startup
+        boolean productsRestored = mProductList != null;
+        mStoreCache = new StoreCache(new File(getFilesDir(), STORE_CACHE_FILE_NAME));
+        mStoreCache.Load();
+        if (mProductList == null && mStoreCache.GetProducts() != null) {
+            mProductList = mStoreCache.GetProducts();
+            addProducts();
+        }
+        if (mReceiptList == null && mStoreCache.GetReceipts() != null) {
+            mReceiptList = mStoreCache.GetReceipts();
+            mReceiptsFromCache = true;
+            addReceipts();
+            // Make sure they belong to whoever is signed in now
+            mGamerUuidRequests.Request(mCachedReceiptsCheck, false);
+        }
+
+        // Request the product list if it could not be restored from the savedInstanceState Bundle;
+        // a list from the cache is only shown until this refreshes it
+        if(!productsRestored) {
             requestProducts();
         }
 
-        // Create a PublicKey object from the key data downloaded from the developer portal.
-        try {
-            X509EncodedKeySpec keySpec = new X509EncodedKeySpec(APPLICATION_KEY);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            mPublicKey = keyFactory.generatePublic(keySpec);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Unable to create encryption key", e);
+        logStartupPhase("onCreate", onCreateStart);
+    }
+
+    /**
+     * Starts the store and crypto setup on a thread of its own, so it overlaps with the Unity
+     * player booting on the UI thread.
+     */
+    private void startBackgroundInit() {
+        final Context context = this;
+        mOuyaFacadeTask = new StartupTask<OuyaFacade>("OuyaFacade.init", mHandler, new Callable<OuyaFacade>() {
+            @Override
+            public OuyaFacade call() {
+                OuyaFacade facade = OuyaFacade.getInstance();
+                facade.init(context, DEVELOPER_ID);
+                return facade;
+            }
+        });
+        mUserManagerTask = new StartupTask<UserManager>("UserManager.getInstance", mHandler, new Callable<UserManager>() {
+            @Override
+            public UserManager call() {
+                return UserManager.getInstance(context);
+            }
+        });
+        mPublicKeyTask = new StartupTask<PublicKey>("Public key", mHandler, new Callable<PublicKey>() {
+            @Override
+            public PublicKey call() {
+                // Create a PublicKey object from the key data downloaded from the developer portal.
+                try {
+                    X509EncodedKeySpec keySpec = new X509EncodedKeySpec(APPLICATION_KEY);
+                    KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+                    return keyFactory.generatePublic(keySpec);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Unable to create encryption key", e);
+                    return null;
+                }
+            }
+        });
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mOuyaFacadeTask.run();
+                mUserManagerTask.run();
+                mPublicKeyTask.run();
+                PurchaseEnvelopeBuilder envelopes = getPurchaseEnvelopes();
+                if (envelopes != null) {
+                    long phaseStart = SystemClock.uptimeMillis();
+                    envelopes.Warm();
+                    logStartupPhase("Purchase encryption warm-up", phaseStart);
+                }
+            }
+        }, "OuyaBridgeStartup").start();
+    }
+
+    private static void logStartupPhase(String phase, long startedAt) {
+        Log.i(LOG_TAG, "Startup: " + phase + " took " + (SystemClock.uptimeMillis() - startedAt) + " ms");
+    }
+
+    /**
+     * Runs a store request once OuyaFacade is initialized: right away if it already is, otherwise
+     * later on the UI thread. If initializing it failed the request is not made, and listener
+     * gets a failure instead so whoever is waiting on it is not left hanging.
+     */
+    private void whenStoreReady(final OuyaResponseListener<?> listener, final Runnable request) {
+        mOuyaFacadeTask.WhenDone(new Runnable() {
+            @Override
+            public void run() {
+                if (mOuyaFacadeTask.GetIfSucceeded() == null) {
+                    listener.onFailure(OuyaErrorCodes.ERROR_REMOTE_EXCEPTION, "OUYA store unavailable", Bundle.EMPTY);
+                    return;
+                }
+                request.run();
+            }
+        });
+    }
+
+    /**
+     * Returns the purchase envelope builder, or null if the public key could not be loaded.
+     */
+    private synchronized PurchaseEnvelopeBuilder getPurchaseEnvelopes() {
+        if (mPurchaseEnvelopes == null) {
+            PublicKey publicKey = mPublicKeyTask.GetIfSucceeded();
+            if (publicKey == null) {
+                return null;
+            }
+            mPurchaseEnvelopes = new PurchaseEnvelopeBuilder(publicKey, mBackgroundExecutor);
+        }
+        return mPurchaseEnvelopes;
+    }
+
+    /**
+     * Shuts down whichever of the OUYA services started. One that failed to start has nothing to
+     * shut down, and its failure was logged when it happened.
+     */
+    private void shutdownOuyaServices() {
+        OuyaFacade facade = mOuyaFacadeTask.GetIfSucceeded();
+        if (facade != null) {
+            facade.shutdown();
+        }
+        UserManager userManager = mUserManagerTask.GetIfSucceeded();
+        if (userManager != null) {
+            userManager.shutdown();
         }
     }
     @Override
@@ -269,7 +590,7 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         // list in order to ensure it is always up to date for whomever is logged in.
         accountsChangedFilter = new IntentFilter();
         accountsChangedFilter.addAction(AccountManager.LOGIN_ACCOUNTS_CHANGED_ACTION);
-        registerReceiver(mAuthChangeReceiver, accountsChangedFilter);
+        registerAuthChangeReceiver();
 
         // listen for controller changes - http://developer.android.com/reference/android/hardware/input/InputManager.html#registerInputDeviceListener%28android.hardware.input.InputManager.InputDeviceListener,%20android.os.Handler%29
         Context context = getBaseContext();
@@ -297,6 +618,7 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         } catch (IllegalArgumentException e) {
             Log.w(LOG_TAG, "Already unregistered auth change receiver at onStop");
         }
+        mAuthChangeReceiverRegistered = false;
         mUnityPlayer.pause();
         super.onStop();
     }
@@ -304,8 +626,9 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
     @Override
     protected void onDestroy()
     {
-        ouyaFacade.shutdown();
-        userManager.shutdown();
+        stopInputRecording();
+        mBackgroundExecutor.shutdown();
+        shutdownOuyaServices();
         super.onDestroy();
 
         // Kill Unity player
@@ -328,11 +651,11 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         } catch (IllegalArgumentException e) {
             Log.w(LOG_TAG, "Already unregistered auth change receiver at onPause");
         }
+        mAuthChangeReceiverRegistered = false;
+        mHandler.removeCallbacks(mReplayStep);
+        mInputReplayer = null;
         // Clear out input
-        for (int i=0; i<OuyaController.MAX_CONTROLLERS; i++)
-        {
-            playerStates[i].Clear();
-        }
+        engine.ClearAll();
         super.onPause();
         if (mEnableLogging) {
             Log.i(LOG_TAG, "OuyaUnityActivity.onPause called");
@@ -341,15 +664,14 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
             mUnityPlayer.pause();
         }
         // On the unity side, clear all current input and button flags.
-        UnityPlayer.UnitySendMessage("OuyaBridge", "didPause", "");
+        messenger.SendPause();
         if (isFinishing()) {
             // Unfortunately this is returning true when hitting the home button.
             if (mEnableLogging) {
                 Log.i(LOG_TAG, " - OuyaUnityActivity.onPause isFinishing, killing unity player!");
             }
 
-            ouyaFacade.shutdown();
-            userManager.shutdown();
+            shutdownOuyaServices();
             mUnityPlayer.quit();
 
         }
@@ -365,8 +687,8 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         {
             mInputManager.registerInputDeviceListener(this, null);
         }
-        registerReceiver(mAuthChangeReceiver, accountsChangedFilter);
-        UnityPlayer.UnitySendMessage("OuyaBridge", "didResume", "");
+        registerAuthChangeReceiver();
+        messenger.SendResume();
         if (UNITY_PAUSE_ON_OUYA_OVERLAYS) {
             mUnityPlayer.resume();
         }
@@ -391,6 +713,17 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         }
     }
 
+    /**
+     * Registers mAuthChangeReceiver unless it already is. Both onStart and onResume call this, and
+     * registering twice would deliver every account change twice.
+     */
+    private void registerAuthChangeReceiver() {
+        if (!mAuthChangeReceiverRegistered) {
+            registerReceiver(mAuthChangeReceiver, accountsChangedFilter);
+            mAuthChangeReceiverRegistered = true;
+        }
+    }
+
     /**
      * Restart an interrupted purchase
      */
@@ -422,8 +755,9 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         if (mProductList != null) {
             outState.putParcelableArray(PRODUCTS_INSTANCE_STATE_KEY, mProductList.toArray(new Product[mProductList.size()]));
         }
-        if (mReceiptList != null) {
-            outState.putParcelableArray(RECEIPTS_INSTANCE_STATE_KEY, mReceiptList.toArray(new Receipt[mReceiptList.size()]));
+        List<Receipt> receipts = mReceiptList;
+        if (receipts != null) {
+            outState.putParcelableArray(RECEIPTS_INSTANCE_STATE_KEY, receipts.toArray(new Receipt[receipts.size()]));
         }
     }
 
@@ -443,7 +777,9 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         {
             Log.i(LOG_TAG, "void onInputDeviceAdded(int deviceId) " + deviceId);
         }
-        sendDevices();
+        metrics.Increment(BridgeMetrics.COUNTER_DEVICE_NOTIFICATIONS);
+        engine.OnDeviceAdded(deviceId);
+        scheduleDeviceChanges();
     }
     public @Override void onInputDeviceChanged(int deviceId)
     {
@@ -451,7 +787,9 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         {
             Log.i(LOG_TAG, "void onInputDeviceChanged(int deviceId) " + deviceId);
         }
-        sendDevices();
+        metrics.Increment(BridgeMetrics.COUNTER_DEVICE_NOTIFICATIONS);
+        engine.OnDeviceChanged(deviceId);
+        scheduleDeviceChanges();
     }
     public @Override void onInputDeviceRemoved(int deviceId)
     {
@@ -459,203 +797,300 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         {
             Log.i(LOG_TAG, "void onInputDeviceRemoved(int deviceId) " + deviceId);
         }
-        sendDevices();
+        metrics.Increment(BridgeMetrics.COUNTER_DEVICE_NOTIFICATIONS);
+        engine.OnDeviceRemoved(deviceId);
+        scheduleDeviceChanges();
+    }
+
+    /**
+     * Sends pending device changes once notifications have been quiet for DEVICE_CHANGE_DEBOUNCE_MS.
+     */
+    private void scheduleDeviceChanges()
+    {
+        mHandler.removeCallbacks(mSendDeviceChanges);
+        mHandler.postDelayed(mSendDeviceChanges, DEVICE_CHANGE_DEBOUNCE_MS);
     }
 
+    /**
+     * Reinitializes controllers and sends Unity the complete device list, replacing whatever it had.
+     */
     void sendDevices()
     {
-        // reinitialize controllers
-        OuyaController.init(this);
-        //Get a list of all device id's and assign them to players.
-        ArrayList<Device> devices = checkDevices();
-        Gson gson = new Gson();
-        String jsonData = gson.toJson(devices);
-        UnityPlayer.UnitySendMessage("OuyaBridge", "didChangeDevices", jsonData);
+        mHandler.removeCallbacks(mSendDeviceChanges);
+        engine.ResetDevices();
     }
 
     private void requestProducts() {
-        ouyaFacade.requestProductList(PRODUCT_IDENTIFIER_LIST, new CancelIgnoringOuyaResponseListener<ArrayList<Product>>() {
+        whenStoreReady(mProductListListener, new Runnable() {
             @Override
-            public void onSuccess(final ArrayList<Product> products) {
-                mProductList = products;
-                addProducts();
+            public void run() {
+                mOuyaFacadeTask.Get().requestProductList(PRODUCT_IDENTIFIER_LIST, mProductListListener);
             }
+        });
+    }
 
-            @Override
-            public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
+    private final OuyaResponseListener<ArrayList<Product>> mProductListListener = new CancelIgnoringOuyaResponseListener<ArrayList<Product>>() {
+        @Override
+        public void onSuccess(final ArrayList<Product> products) {
+            mProductList = products;
+            addProducts();
+            runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    mStoreCache.PutProducts(products);
+                }
+            });
+        }
 
-                showError("Could not fetch product information (error " + errorCode + ":" + errorMessage);
-            }
+        @Override
+        public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
 
-        });
-    }
+            showError("Could not fetch product information (error " + errorCode + ":" + errorMessage);
+        }
+
+    };
 
     public boolean isRunningOnOuyaHardware() {
-        boolean rc = ouyaFacade.isRunningOnOUYAHardware();
+        // Without OuyaFacade there is no telling, so this answers false
+        OuyaFacade facade = mOuyaFacadeTask.GetIfSucceeded();
+        boolean rc = facade != null && facade.isRunningOnOUYAHardware();
         // The log message is partly here for debugging, partly to remind you not to call this each frame!
         Log.i(LOG_TAG, "ouyaFacade.isRunningOnOuyaHardware returned " + ("" + rc));
         return rc;
     }
 
     public int getOdkVersionNumber() {
-        int rc = ouyaFacade.getOdkVersionNumber();
+        int rc = OuyaFacade.getOdkVersionNumber();
         Log.i(LOG_TAG, "ouyaFacade.getOdkVersionNumber returned " + ("" + rc));
         return rc;
     }
 
     public void fetchGamerUUID() {
-        ouyaFacade.requestGamerUuid(new CancelIgnoringOuyaResponseListener<String>() {
-            @Override
-            public void onSuccess(String result) {
-                mGamerUuid = result;
-                // Send back to unity
-                UnityPlayer.UnitySendMessage("OuyaBridge", "didFetchGamerUuid", mGamerUuid);
+        mGamerUuidRequests.Request(mGamerUuidListener, false);
+    }
+
+    private final RequestCoalescer<String> mGamerUuidRequests = new RequestCoalescer<String>(mHandler) {
+        @Override
+        protected void Start(final OuyaResponseListener<String> listener) {
+            whenStoreReady(listener, new Runnable() {
+                @Override
+                public void run() {
+                    mOuyaFacadeTask.Get().requestGamerUuid(listener);
+                }
+            });
+        }
+    };
+
+    private final OuyaResponseListener<String> mGamerUuidListener = new CancelIgnoringOuyaResponseListener<String>() {
+        @Override
+        public void onSuccess(String result) {
+            mGamerUuid = result;
+            checkCachedReceipts(result);
+            // Send back to unity
+            messenger.SendGamerUuid(mGamerUuid);
+        }
+
+        @Override
+        public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
+            Log.w(LOG_TAG, "Fetch gamer UUID error (code " + errorCode + ": " + errorMessage + ")");
+            boolean wasHandledByAuthHelper =
+                OuyaAuthenticationHelper.handleError(
+                    OuyaUnityActivity.this,
+                    errorCode,
+                    errorMessage,
+                    optionalData,
+                    GAMER_UUID_AUTHENTICATION_ACTIVITY_ID,
+                    new OuyaResponseListener<Void>() {
+                        @Override
+                        public void onSuccess(Void result) {
+                            // Retry the fetch if the error was handled
+                            fetchGamerUUID();
+                        }
+
+                        @Override
+                        public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
+                            showError("Unable to fetch gamer UUID (error " + errorCode + ": " + errorMessage + ")");
+                        }
+
+                        @Override
+                        public void onCancel() {
+                            showError("Unable to fetch gamer UUID (Attempt to get account cancelled)");
+                        }
+                    });
+            if (!wasHandledByAuthHelper) {
+                showError("Unable to fetch gamer UUID" + errorCode + ": " + errorMessage + ")");
             }
+        }
+    };
 
-            @Override
-            public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
-                Log.w(LOG_TAG, "Fetch gamer UUID error (code " + errorCode + ": " + errorMessage + ")");
-                boolean wasHandledByAuthHelper =
-                    OuyaAuthenticationHelper.handleError(
-                        OuyaUnityActivity.this,
-                        errorCode,
-                        errorMessage,
-                        optionalData,
-                        GAMER_UUID_AUTHENTICATION_ACTIVITY_ID,
-                        new OuyaResponseListener<Void>() {
-                            @Override
-                            public void onSuccess(Void result) {
-                                // Retry the fetch if the error was handled
-                                fetchGamerUUID();
-                            }
+    /**
+     * Learns the gamer UUID on startup without any of the error UI of fetchGamerUUID.
+     */
+    private final OuyaResponseListener<String> mCachedReceiptsCheck = new CancelIgnoringOuyaResponseListener<String>() {
+        @Override
+        public void onSuccess(String result) {
+            mGamerUuid = result;
+            checkCachedReceipts(result);
+        }
 
-                            @Override
-                            public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
-                                showError("Unable to fetch gamer UUID (error " + errorCode + ": " + errorMessage + ")");
-                            }
+        @Override
+        public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
+            Log.w(LOG_TAG, "Unable to check cached receipts (error " + errorCode + ": " + errorMessage + ")");
+        }
+    };
 
-                            @Override
-                            public void onCancel() {
-                                showError("Unable to fetch gamer UUID (Attempt to get account cancelled)");
-                            }
-                        });
-                if (!wasHandledByAuthHelper) {
-                    showError("Unable to fetch gamer UUID" + errorCode + ": " + errorMessage + ")");
+    /**
+     * Ties the cached receipts to gamerUuid, the gamer now signed in, or null if that isn't known.
+     * Receipts from the cache that were fetched for someone else are withdrawn from Unity; receipts
+     * fetched this session before the gamer UUID was known are labelled with it.
+     */
+    private void checkCachedReceipts(final String gamerUuid) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                if (mReceiptsFromCache) {
+                    if (mStoreCache.InvalidateReceipts(gamerUuid)) {
+                        mReceiptsFromCache = false;
+                        mReceiptList = new ArrayList<Receipt>();
+                        messenger.SendReceipts(mReceiptList);
+                    }
+                } else if (gamerUuid != null && mStoreCache.GetGamerUuid() == null && mStoreCache.GetReceipts() != null) {
+                    mStoreCache.PutReceipts(gamerUuid, mStoreCache.GetReceipts());
+                } else if (gamerUuid == null) {
+                    mStoreCache.InvalidateReceipts(null);
                 }
             }
         });
     }
 
+    /**
+     * Runs task on the background executor, unless the activity is already being destroyed.
+     */
+    private void runInBackground(Runnable task) {
+        try {
+            mBackgroundExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Dropping background work submitted after shutdown");
+        }
+    }
+
     private void requestReceipts() {
-        ouyaFacade.requestReceipts(new ReceiptListener());
+        mReceiptRequests.Request(mReceiptListener, false);
+    }
+
+    /**
+     * Requests receipts that reflect everything up to now, such as a purchase that just completed,
+     * so an earlier request that is still in flight cannot answer it.
+     */
+    private void requestFreshReceipts() {
+        mReceiptRequests.Request(mReceiptListener, true);
     }
 
+    private final RequestCoalescer<String> mReceiptRequests = new RequestCoalescer<String>(mHandler) {
+        @Override
+        protected void Start(final OuyaResponseListener<String> listener) {
+            whenStoreReady(listener, new Runnable() {
+                @Override
+                public void run() {
+                    mOuyaFacadeTask.Get().requestReceipts(listener);
+                }
+            });
+        }
+    };
+
+    private final ReceiptListener mReceiptListener = new ReceiptListener();
+
     private void addProducts() {
         // Send product information over to Unity.
-        Gson gson = new Gson();
-        String json = gson.toJson(mProductList);
-        UnityPlayer.UnitySendMessage("OuyaBridge", "didFetchProducts", json);
+        messenger.SendProducts(mProductList);
     }
 
     private void addReceipts() {
         // Send receipt information over to Unity.
-        Gson gson = new Gson();
-        String json = gson.toJson(mReceiptList);
-        UnityPlayer.UnitySendMessage("OuyaBridge", "didFetchReceipts", json);
+        messenger.SendReceipts(mReceiptList);
     }
 
     public void requestPurchase(final String productId)
-        throws GeneralSecurityException, UnsupportedEncodingException, JSONException {
-        SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
-
+        throws GeneralSecurityException, UnsupportedEncodingException {
         // This is an ID that allows you to associate a successful purchase with
         // it's original request. The server does nothing with this string except
         // pass it back to you, so it only needs to be unique within this instance
         // of your app to allow you to pair responses with requests.
-        String uniqueId = Long.toHexString(sr.nextLong());
-        JSONObject purchaseRequest = new JSONObject();
-        purchaseRequest.put("uuid", uniqueId);
-        purchaseRequest.put("identifier", productId);
-        purchaseRequest.put("testing", "true"); // This value is only needed for testing, not setting it results in a live purchase
-        String purchaseRequestJson = purchaseRequest.toString();
-        byte[] keyBytes = new byte[16];
-        sr.nextBytes(keyBytes);
-        SecretKey key = new SecretKeySpec(keyBytes, "AES");
-        byte[] ivBytes = new byte[16];
-        sr.nextBytes(ivBytes);
-        IvParameterSpec iv = new IvParameterSpec(ivBytes);
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
-        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-        byte[] payload = cipher.doFinal(purchaseRequestJson.getBytes("UTF-8"));
-        cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
-        cipher.init(Cipher.ENCRYPT_MODE, mPublicKey);
-        byte[] encryptedKey = cipher.doFinal(keyBytes);
-        Purchasable purchasable =
-                new Purchasable(
-                        productId,
-                        Base64.encodeToString(encryptedKey, Base64.NO_WRAP),
-                        Base64.encodeToString(ivBytes, Base64.NO_WRAP),
-                        Base64.encodeToString(payload, Base64.NO_WRAP) );
+        OuyaFacade facade = mOuyaFacadeTask.GetIfSucceeded();
+        PurchaseEnvelopeBuilder envelopes = facade == null ? null : getPurchaseEnvelopes();
+        if (envelopes == null) {
+            Log.w(LOG_TAG, "Not requesting purchase of " + productId + ": OUYA store unavailable");
+            showError("Unable to make purchase (OUYA store unavailable)");
+            return;
+        }
+        String uniqueId = envelopes.NewUniqueId();
+        Purchasable purchasable = envelopes.Build(productId, uniqueId);
         synchronized (mOutstandingPurchaseRequests) {
             mOutstandingPurchaseRequests.put(uniqueId, productId);
         }
-        ouyaFacade.requestPurchase(purchasable, new PurchaseListener(productId));
+        facade.requestPurchase(purchasable, new PurchaseListener(productId));
     }
 
-    private ArrayList<Device> checkDevices(){
-        //Get a list of all device id's and assign them to players.
-        ArrayList<Device> devices = new ArrayList<Device>();
-        int[] deviceIds = InputDevice.getDeviceIds();
+    /**
+     * Finds controllers among Android's input devices. Controllers beyond the ones OuyaController
+     * handles are recognized by their input sources.
+     */
+    private class AndroidControllerBackend implements InputEngine.ControllerBackend {
+        @Override
+        public int[] GetDeviceIds() {
+            return InputDevice.getDeviceIds();
+        }
 
-        for (int count=0; count < deviceIds.length; count++)
-        {
-            InputDevice d = InputDevice.getDevice(deviceIds[count]);
-            if (!d.isVirtual())
-            {
-                Device device = new Device();
-                device.id = d.getId();
-                device.player = OuyaController.getPlayerNumByDeviceId(device.id);
-                if (device.player != DEVICE_NOT_OUYACONTROLLER_COMPATIBLE) {
-                    device.name = d.getName();
-                    devices.add(device);
-                }
+        @Override
+        public boolean ReadDevice(int deviceId, Device device) {
+            InputDevice d = InputDevice.getDevice(deviceId);
+            if (d == null || d.isVirtual()) {
+                return false;
             }
+            int sources = d.getSources();
+            int sdkPlayer = OuyaController.getPlayerNumByDeviceId(deviceId);
+            boolean controller = sdkPlayer != DEVICE_NOT_OUYACONTROLLER_COMPATIBLE
+                || (sources & InputDevice.SOURCE_GAMEPAD) == InputDevice.SOURCE_GAMEPAD
+                || (sources & InputDevice.SOURCE_JOYSTICK) == InputDevice.SOURCE_JOYSTICK;
+            if (!controller) {
+                return false;
+            }
+            device.id = d.getId();
+            device.name = d.getName();
+            device.descriptor = d.getDescriptor();
+            device.sdkPlayer = sdkPlayer;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                device.vendorId = d.getVendorId();
+                device.productId = d.getProductId();
+            }
+            return true;
+        }
+
+        @Override
+        public void Reinitialize() {
+            OuyaController.init(OuyaUnityActivity.this);
         }
-        return devices;
     }
 
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event)
     {
+        long start = System.nanoTime();
         // Pass to OuyaController first, then process.
         boolean handled = false;
-        int playerNum = OuyaController.getPlayerNumByDeviceId(event.getDeviceId());
+        int playerNum = engine.GetPlayer(event.getDeviceId());
         if (playerNum != DEVICE_NOT_OUYACONTROLLER_COMPATIBLE) {
             handled = OuyaController.onKeyDown(keyCode, event);
             if (mPaused) return handled || super.onKeyDown(keyCode, event);
             try {
-                ControllerState data = playerStates[playerNum];
-                OuyaController c = OuyaController.getControllerByPlayer(playerNum);
-                if (data != null)
-                {
-                    data.ButtonO = c.getButton(OuyaController.BUTTON_O);
-                    data.ButtonU = c.getButton(OuyaController.BUTTON_U);
-                    data.ButtonY = c.getButton(OuyaController.BUTTON_Y);
-                    data.ButtonA = c.getButton(OuyaController.BUTTON_A);
-                    data.ButtonDPD = c.getButton(OuyaController.BUTTON_DPAD_DOWN);
-                    data.ButtonDPU = c.getButton(OuyaController.BUTTON_DPAD_UP);
-                    data.ButtonDPL = c.getButton(OuyaController.BUTTON_DPAD_LEFT);
-                    data.ButtonDPR = c.getButton(OuyaController.BUTTON_DPAD_RIGHT);
-                    data.ButtonL1 = c.getButton(OuyaController.BUTTON_L1);
-                    data.ButtonL2 = c.getButton(OuyaController.BUTTON_L2);
-                    data.ButtonL3 = c.getButton(OuyaController.BUTTON_L3);
-                    data.ButtonR1 = c.getButton(OuyaController.BUTTON_R1);
-                    data.ButtonR2 = c.getButton(OuyaController.BUTTON_R2);
-                    data.ButtonR3 = c.getButton(OuyaController.BUTTON_R3);
+                int mapped = engine.GetProfile(event.getDeviceId()).MapKeyCode(keyCode);
+                if (mapped != 0) {
+                    engine.OnKey(playerNum, event.getDeviceId(), mapped, true, event.getEventTime());
                 }
             } catch (Exception e) {
                 Log.w(LOG_TAG, "Exception occurred getting controller state for player " + playerNum + ": " + e.toString());
             }
+            metrics.Record(BridgeMetrics.OP_KEY_EVENT, start);
         }
         return handled || mUnityPlayer.onKeyDown(keyCode, event);
     }
@@ -663,53 +1098,40 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
     @Override
     public boolean onKeyUp(int keyCode, KeyEvent event)
     {
+        long start = System.nanoTime();
         boolean handled = false;
-        int playerNum = OuyaController.getPlayerNumByDeviceId(event.getDeviceId());
+        int playerNum = engine.GetPlayer(event.getDeviceId());
         if (playerNum != DEVICE_NOT_OUYACONTROLLER_COMPATIBLE) {
+            int mapped = engine.GetProfile(event.getDeviceId()).MapKeyCode(keyCode);
             // A special MENU KeyUp event is triggered at the same time as its KeyDown event
             // in the OUYA SDK. We tell the Unity layer to handle this specially and emulate
             // a 1-frame menu button press.
-            if (keyCode == OuyaController.BUTTON_MENU) {
-                UnityPlayer.UnitySendMessage("OuyaBridge", "MenuButtonPressed", "" + playerNum);
+            if (mapped == OuyaController.BUTTON_MENU) {
+                engine.OnKey(playerNum, event.getDeviceId(), mapped, false, event.getEventTime());
                 return handled || super.onKeyDown(keyCode, event);
             }
 
             // Pass to OuyaController first, then process.
-            handled = OuyaController.onKeyDown(keyCode, event);
-            if (mPaused) return handled || super.onKeyDown(keyCode, event);
+            handled = OuyaController.onKeyUp(keyCode, event);
+            if (mPaused) return handled || super.onKeyUp(keyCode, event);
             try {
-                playerNum = OuyaController.getPlayerNumByDeviceId(event.getDeviceId());
-                ControllerState data = playerStates[playerNum];
-                OuyaController c = OuyaController.getControllerByPlayer(playerNum);
-                if (data != null)
-                {
-                    data.ButtonO = c.getButton(OuyaController.BUTTON_O);
-                    data.ButtonU = c.getButton(OuyaController.BUTTON_U);
-                    data.ButtonY = c.getButton(OuyaController.BUTTON_Y);
-                    data.ButtonA = c.getButton(OuyaController.BUTTON_A);
-                    data.ButtonDPD = c.getButton(OuyaController.BUTTON_DPAD_DOWN);
-                    data.ButtonDPU = c.getButton(OuyaController.BUTTON_DPAD_UP);
-                    data.ButtonDPL = c.getButton(OuyaController.BUTTON_DPAD_LEFT);
-                    data.ButtonDPR = c.getButton(OuyaController.BUTTON_DPAD_RIGHT);
-                    data.ButtonL1 = c.getButton(OuyaController.BUTTON_L1);
-                    data.ButtonL2 = c.getButton(OuyaController.BUTTON_L2);
-                    data.ButtonL3 = c.getButton(OuyaController.BUTTON_L3);
-                    data.ButtonR1 = c.getButton(OuyaController.BUTTON_R1);
-                    data.ButtonR2 = c.getButton(OuyaController.BUTTON_R2);
-                    data.ButtonR3 = c.getButton(OuyaController.BUTTON_R3);
+                if (mapped != 0) {
+                    engine.OnKey(playerNum, event.getDeviceId(), mapped, false, event.getEventTime());
                 }
             } catch (Exception e) {
                 Log.w(LOG_TAG, "Exception occurred getting controller state for player " + playerNum + ": " + e.toString());
             }
+            metrics.Record(BridgeMetrics.OP_KEY_EVENT, start);
         }
-        return handled || mUnityPlayer.onKeyDown(keyCode, event);
+        return handled || mUnityPlayer.onKeyUp(keyCode, event);
     }
 
     @Override
     public boolean onGenericMotionEvent(MotionEvent event) {
+        long start = System.nanoTime();
         // Pass to OuyaController first, then process.
         boolean handled = false;
-        int playerNum = OuyaController.getPlayerNumByDeviceId(event.getDeviceId());
+        int playerNum = engine.GetPlayer(event.getDeviceId());
 
         // Add the additional conditional that this must be a joystick event (not a pointer event).
         if (playerNum != DEVICE_NOT_OUYACONTROLLER_COMPATIBLE
@@ -719,87 +1141,4044 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
 
             // Check if this was a joystick or touch hover event
             try {
-                ControllerState data = playerStates[playerNum];
-                OuyaController c = OuyaController.getControllerByPlayer(playerNum);
-                if (data != null)
-                {
-                    data.AxisLSX = c.getAxisValue(OuyaController.AXIS_LS_X);
-                    data.AxisLSY = c.getAxisValue(OuyaController.AXIS_LS_Y);
-                    data.AxisRSX = c.getAxisValue(OuyaController.AXIS_RS_X);
-                    data.AxisRSY = c.getAxisValue(OuyaController.AXIS_RS_Y);
-                    data.AxisLT = c.getAxisValue(OuyaController.AXIS_L2);
-                    data.AxisRT = c.getAxisValue(OuyaController.AXIS_R2);
+                ControllerProfile profile = engine.GetProfile(event.getDeviceId());
+                AxisSampleBuffer[] samples = axisSamples;
+                if (samples != null) {
+                    samples[playerNum].AddMotionEvent(event, profile);
+                }
+                // Read straight from the event through the device's profile: OuyaController
+                // only knows the SDK's players and the OUYA layout.
+                float[] axes = mRawAxes;
+                profile.ReadAxes(event, axes, 0);
+                engine.OnAxes(playerNum, event.getDeviceId(), axes, event.getEventTime());
+                if (profile.HasHatDpad()) {
+                    engine.OnHat(playerNum, event.getDeviceId(), event.getAxisValue(MotionEvent.AXIS_HAT_X),
+                        event.getAxisValue(MotionEvent.AXIS_HAT_Y), event.getEventTime());
                 }
             } catch (Exception e) {
                 Log.i(LOG_TAG, "Exception occurred getting controller state for player " + playerNum + ": " + e.toString());
             }
+            metrics.Record(BridgeMetrics.OP_MOTION_EVENT, start);
         }
         return handled || super.onGenericMotionEvent(event);
     }
 
-    /***
-    /* Unity Interface through JNI
+    // Pointer events are watched on their way to the views rather than in onTouchEvent and
+    // onGenericMotionEvent, which only see what the views left unhandled. Unity still gets
+    // every event as before.
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        capturePointer(event);
+        return super.dispatchTouchEvent(event);
+    }
+
+    @Override
+    public boolean dispatchGenericMotionEvent(MotionEvent event) {
+        capturePointer(event);
+        return super.dispatchGenericMotionEvent(event);
+    }
+
+    /**
+     * Copies the cursor or touchpad of a controller into its player's state. Pointer events
+     * from devices that are not controllers, such as a touchscreen, are left alone.
+     */
+    private void capturePointer(MotionEvent event) {
+        if ((event.getSource() & (InputDevice.SOURCE_CLASS_POINTER | InputDevice.SOURCE_CLASS_POSITION)) == 0 || mPaused) {
+            return;
+        }
+        int flags;
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_HOVER_ENTER:
+            case MotionEvent.ACTION_HOVER_MOVE:
+            case MotionEvent.ACTION_UP:
+                flags = ControllerState.POINTER_HOVER;
+                break;
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_MOVE:
+                flags = ControllerState.POINTER_HOVER | ControllerState.POINTER_DOWN;
+                break;
+            case MotionEvent.ACTION_HOVER_EXIT:
+            case MotionEvent.ACTION_CANCEL:
+                flags = 0;
+                break;
+            default:
+                return;
+        }
+        long start = System.nanoTime();
+        int playerNum = engine.GetPlayer(event.getDeviceId());
+        if (playerNum != DEVICE_NOT_OUYACONTROLLER_COMPATIBLE) {
+            engine.OnPointer(playerNum, event.getDeviceId(), flags, event.getX(), event.getY(), event.getEventTime());
+            metrics.Record(BridgeMetrics.OP_MOTION_EVENT, start);
+        }
+    }
+
+    /**
+     * Starts writing every controller input to a file, replacing any recording in progress.
+     * Inputs are recorded while the activity is in the foreground.
+     */
+    public void startInputRecording(String path) throws IOException
+    {
+        InputRecorder previous = engine.GetRecorder();
+        engine.SetRecorder(new InputRecorder(new File(path), mBackgroundExecutor));
+        if (previous != null) {
+            previous.Close();
+        }
+    }
+
+    public void stopInputRecording()
+    {
+        InputRecorder recorder = engine.GetRecorder();
+        engine.SetRecorder(null);
+        if (recorder != null) {
+            recorder.Close();
+            Log.i(LOG_TAG, "Input recording stopped after " + recorder.GetRecordCount() + " records");
+        }
+    }
+
+    /**
+     * Plays a recording back into the controller state as if the inputs were happening now,
+     * speed times faster than they were recorded, replacing any replay in progress; speed 0
+     * plays it as fast as the UI thread takes the batches. Live input keeps working alongside
+     * it. The replay stops when the activity pauses.
+     */
+    public void startInputReplay(String path, float speed) throws IOException
+    {
+        final InputReplayer replayer = InputReplayer.Open(new File(path), speed);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mReplayStep);
+                mInputReplayer = replayer;
+                replayer.Start(SystemClock.uptimeMillis());
+                mReplayStep.run();
+            }
+        });
+    }
+
+    public void stopInputReplay()
+    {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mReplayStep);
+                mInputReplayer = null;
+            }
+        });
+    }
+
+    /***
+    /* Unity Interface through JNI
     /*/
 
-    public static ControllerState GetControllerState(int playerNum)
-    {
-        return playerStates[playerNum];
+    /**
+     * Returns the live state object the UI thread writes into. Fields may change while they
+     * are being read; use GetControllerSnapshot for a consistent view.
+     */
+    public static ControllerState GetControllerState(int playerNum)
+    {
+        return engine.GetWorkingState(playerNum);
+    }
+
+    /**
+     * Returns the state of every player packed into a single float array so that Unity can
+     * read all controllers with one JNI call per frame instead of one call per field.
+     * Each player occupies SNAPSHOT_STRIDE floats starting at
+     * SNAPSHOT_HEADER + playerNum * SNAPSHOT_STRIDE, up to the highest player slot handed out. The
+     * array is reused between calls while that count stays the same and
+     * only refilled when the UI thread has published something new, which the caller can
+     * detect by comparing the SNAPSHOT_SEQUENCE slot with the previous frame's; the
+     * SNAPSHOT_DIRTY_PLAYERS slot then says which players changed.
+     * Must only be called from one thread (Unity's main thread).
+     */
+    public static float[] GetControllerSnapshot()
+    {
+        long start = System.nanoTime();
+        float[] snapshot = engine.TakeSnapshot();
+        metrics.Record(BridgeMetrics.OP_CONTROLLER_SNAPSHOT, start);
+        return snapshot;
+    }
+
+    /**
+     * Returns the mask of players (bit n for player n) whose state changed since the last
+     * GetControllerSnapshot call, or 0 if nothing did, in which case Unity can skip fetching the
+     * snapshot altogether. Call it from the thread that takes snapshots.
+     */
+    public static int GetDirtyPlayers()
+    {
+        return engine.GetDirtyPlayers();
+    }
+
+    /**
+     * Returns the sequence number of the most recently published controller state. It
+     * increases by one on every publish, so an unchanged value means nothing happened.
+     */
+    public static long GetStateSequence()
+    {
+        return engine.GetStateSequence();
+    }
+
+    /**
+     * Enables buffering of individual timestamped input events so that presses shorter than a
+     * frame can be seen in order. The capacity is rounded up to a power of two; size it for the
+     * number of events that can arrive between two drains. Pass 0 to disable buffering.
+     * Events still pending in the previous buffer are discarded.
+     */
+    public static void SetInputEventBufferCapacity(int capacity)
+    {
+        engine.SetEventBufferCapacity(capacity);
+    }
+
+    /**
+     * Removes and returns every pending input event, two longs per event as laid out by
+     * InputEventBuffer.Drain, or null if there are none or buffering is disabled.
+     * Must only be called from one thread (Unity's main thread).
+     */
+    public static long[] DrainInputEvents()
+    {
+        InputEventBuffer events = engine.GetEventBuffer();
+        return events != null ? events.Drain() : null;
+    }
+
+    /**
+     * Returns how many input events were dropped because the buffer was full.
+     */
+    public static long GetInputEventOverflowCount()
+    {
+        InputEventBuffer events = engine.GetEventBuffer();
+        return events != null ? events.GetOverflowCount() : 0;
+    }
+
+    /**
+     * Compiles a combo pattern, as documented on ComboRecognizer, and starts watching every
+     * player's input for it. A combo with the same id is replaced. windowMs is the longest
+     * gap allowed between two steps. Returns false, logging why, if the pattern is invalid.
+     */
+    public static boolean AddCombo(int comboId, String pattern, int windowMs)
+    {
+        try {
+            engine.GetComboRecognizer().Add(comboId, pattern, windowMs);
+            return true;
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Combo " + comboId + " rejected: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public static boolean RemoveCombo(int comboId)
+    {
+        return engine.GetComboRecognizer().Remove(comboId);
+    }
+
+    public static void ClearCombos()
+    {
+        engine.GetComboRecognizer().Clear();
+    }
+
+    /**
+     * Mirrors a player's directions for combo recognition, for when their character faces left.
+     */
+    public static void SetComboMirrored(int playerNum, boolean mirrored)
+    {
+        engine.GetComboRecognizer().SetMirrored(playerNum, mirrored);
+    }
+
+    /**
+     * Removes and returns every combo matched since the last call, two longs per match as laid
+     * out by InputEventBuffer.Drain with the combo id as the code and the milliseconds the
+     * combo took as the value, or null if there are none.
+     * Must only be called from one thread (Unity's main thread).
+     */
+    public static long[] DrainComboEvents()
+    {
+        return engine.GetComboRecognizer().GetMatches().Drain();
+    }
+
+    /**
+     * Registers how to read a gamepad that does not use the OUYA layout, as a mapping in the
+     * format documented on ControllerProfile. The profile applies to devices with the given
+     * USB vendor and product id where Android reports them, and otherwise to devices with the
+     * given name; pass 0 or null for whichever is not known. Connected devices pick it up
+     * straight away. Returns false, logging why, if the mapping is invalid.
+     */
+    public static boolean AddControllerProfile(int vendorId, int productId, String deviceName, String mapping)
+    {
+        ControllerProfile profile;
+        try {
+            profile = ControllerProfile.Parse(deviceName != null ? deviceName : vendorId + ":" + productId, mapping);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Controller profile for " + deviceName + " rejected: " + e.getMessage());
+            return false;
+        }
+        engine.GetControllerProfiles().Add(vendorId, productId, deviceName, profile);
+        engine.RefreshProfiles();
+        return true;
+    }
+
+    /**
+     * Removes every controller profile, including the built in ones, so every pad is read with
+     * the OUYA layout.
+     */
+    public static void ClearControllerProfiles()
+    {
+        engine.GetControllerProfiles().Clear();
+        engine.RefreshProfiles();
+    }
+
+    /**
+     * Sets the radial deadzone of a stick (0 for left, 1 for right) as a fraction of full
+     * deflection. Inside it the stick reads as centred; outside it the remaining range is
+     * stretched back to 0..1 along the stick's direction. A negative playerNum sets every player.
+     */
+    public static void SetStickDeadzone(int playerNum, int stick, float radius)
+    {
+        engine.SetStickDeadzone(playerNum, stick, radius);
+    }
+
+    /**
+     * Configures how one axis (a SNAPSHOT_AXIS_* index, matching OuyaAxis in Unity) is shaped,
+     * in this order: an axial deadzone with the remaining range rescaled, a response curve
+     * output = input^exponent keeping the sign, exponential smoothing where smoothing is the
+     * weight of each new value (1 for none), and a jitter threshold below which changes are
+     * ignored. A negative playerNum sets every player.
+     */
+    public static void SetAxisFilter(int playerNum, int axis, float deadzone, float exponent, float smoothing, float jitter)
+    {
+        engine.SetAxisFilter(playerNum, axis, deadzone, exponent, smoothing, jitter);
+    }
+
+    /**
+     * Enables high resolution axis mode: every stick and trigger sample Android batched into a
+     * motion event is kept, not just the latest, so movements faster than a frame can be replayed.
+     * The capacity is per player, rounded up to a power of two. Pass 0 to turn the mode off.
+     * Samples still pending in the previous buffers are discarded.
+     */
+    public static void SetAxisSampleBufferCapacity(int capacity)
+    {
+        AxisSampleBuffer[] samples = null;
+        if (capacity > 0)
+        {
+            samples = new AxisSampleBuffer[engine.GetPlayerCount()];
+            for (int i=0; i<samples.length; i++)
+            {
+                samples[i] = new AxisSampleBuffer(capacity);
+            }
+        }
+        axisSamples = samples;
+    }
+
+    /**
+     * Removes and returns every pending axis sample of every player, four longs per sample as
+     * laid out by AxisSampleBuffer.Drain, or null if there are none or the mode is off.
+     * Must only be called from one thread (Unity's main thread).
+     */
+    public static long[] DrainAxisSamples()
+    {
+        AxisSampleBuffer[] samples = axisSamples;
+        if (samples == null)
+        {
+            return null;
+        }
+        int pending = 0;
+        for (int i=0; i<samples.length; i++)
+        {
+            pending += samples[i].GetPendingCount();
+        }
+        if (pending == 0)
+        {
+            return null;
+        }
+        long[] out = new long[pending * AxisSampleBuffer.LONGS_PER_SAMPLE];
+        int offset = 0;
+        for (int i=0; i<samples.length; i++)
+        {
+            offset = samples[i].Drain(i, out, offset);
+        }
+        return offset == out.length ? out : Arrays.copyOf(out, offset);
+    }
+
+    /**
+     * Returns how many axis samples were dropped, over all players, because a buffer was full.
+     */
+    public static long GetAxisSampleOverflowCount()
+    {
+        AxisSampleBuffer[] samples = axisSamples;
+        long overflow = 0;
+        if (samples != null)
+        {
+            for (int i=0; i<samples.length; i++)
+            {
+                overflow += samples[i].GetOverflowCount();
+            }
+        }
+        return overflow;
+    }
+
+    /**
+     * Switches bridge notifications from UnitySendMessage strings to binary records that Unity
+     * collects once per frame with DrainMessages.
+     */
+    public static void SetBinaryMessagesEnabled(boolean enabled)
+    {
+        messenger.SetBinaryEnabled(enabled);
+    }
+
+    /**
+     * Removes and returns all queued binary messages in the format described in BridgeMessenger,
+     * or null if there are none.
+     */
+    public static byte[] DrainMessages()
+    {
+        return messenger.Drain();
+    }
+
+    /**
+     * Returns how many binary messages were dropped because Unity did not drain the queue.
+     */
+    public static long GetMessageOverflowCount()
+    {
+        return messenger.GetOverflowCount();
+    }
+
+    /**
+     * Tells the bridge that Unity has acted on the snapshot returned by the last
+     * GetControllerSnapshot call. For every player whose state changed in that snapshot, the time
+     * since its oldest input event is added to that player's latency window. Calling it again
+     * before the next snapshot has no effect. Must be called from the thread that takes snapshots.
+     */
+    public static void ReportSnapshotConsumed()
+    {
+        engine.ReportSnapshotConsumed(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Returns the 50th, 95th and 99th percentile of a player's recent input latency and the
+     * number of samples they come from, in milliseconds, or null if nothing has been recorded.
+     */
+    public static int[] GetInputLatencyPercentiles(int playerNum)
+    {
+        return engine.GetLatencyPercentiles(playerNum);
+    }
+
+    public static void ResetInputLatency()
+    {
+        engine.ResetLatency();
+    }
+
+    /**
+     * Returns the bridge metrics laid out as described in BridgeMetrics.Snapshot; the names are
+     * those from GetMetricNames, counters first.
+     */
+    public static long[] GetMetrics()
+    {
+        return metrics.Snapshot();
+    }
+
+    public static String[] GetMetricNames()
+    {
+        String[] names = new String[BridgeMetrics.COUNTER_NAMES.length + BridgeMetrics.OP_NAMES.length];
+        System.arraycopy(BridgeMetrics.COUNTER_NAMES, 0, names, 0, BridgeMetrics.COUNTER_NAMES.length);
+        System.arraycopy(BridgeMetrics.OP_NAMES, 0, names, BridgeMetrics.COUNTER_NAMES.length, BridgeMetrics.OP_NAMES.length);
+        return names;
+    }
+
+    /**
+     * Writes the bridge metrics to logcat.
+     */
+    public static void DumpMetrics()
+    {
+        metrics.Dump();
+        for (int i=0; i<engine.GetPlayerCount(); i++)
+        {
+            int[] latency = engine.GetLatencyPercentiles(i);
+            if (latency != null)
+            {
+                Log.i(LOG_TAG, "Metrics: inputLatency player " + i + " p50=" + latency[0] + "ms p95="
+                    + latency[1] + "ms p99=" + latency[2] + "ms n=" + latency[3]);
+            }
+        }
+    }
+
+    public static void ResetMetrics()
+    {
+        metrics.Reset();
+    }
+
+    public static class Device
+    {
+        public int id;
+        public int player;
+        public String name;
+        // Stable across reconnects, used to give a controller its old player slot back. Not sent to Unity.
+        public String descriptor;
+        // The player number the OUYA SDK gives the controller, which becomes its slot, or
+        // DEVICE_NOT_OUYACONTROLLER_COMPATIBLE if the SDK does not number it. Not sent to Unity.
+        public int sdkPlayer = DEVICE_NOT_OUYACONTROLLER_COMPATIBLE;
+        // USB ids where Android reports them, else 0, and the profile they select (null for the
+        // OUYA layout). Not sent to Unity.
+        public int vendorId;
+        public int productId;
+        public ControllerProfile profile;
+
+        public boolean sameAs(Device other) {
+            return other != null && id == other.id && player == other.player
+                && (name == null ? other.name == null : name.equals(other.name));
+        }
+    }
+
+    /**
+     * Payload of the didChangeDevices message. When reset is set, added is the complete device
+     * list; otherwise added holds new or reassigned devices and removed the ids that went away.
+     */
+    public static class DeviceChanges
+    {
+        public boolean reset = false;
+        public List<Device> added = new ArrayList<Device>();
+        public List<Integer> removed = new ArrayList<Integer>();
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    public static class ControllerState
+    {
+        /**
+         * Bit positions of each button in the packed button mask. These match the
+         * OuyaKey enum values in OuyaInput.cs so Unity can test (mask & (1 << (int)key)).
+         */
+        public static final int BUTTON_O = 1 << 0;
+        public static final int BUTTON_U = 1 << 1;
+        public static final int BUTTON_Y = 1 << 2;
+        public static final int BUTTON_A = 1 << 3;
+        public static final int BUTTON_L1 = 1 << 4;
+        public static final int BUTTON_L2 = 1 << 5;
+        public static final int BUTTON_R1 = 1 << 6;
+        public static final int BUTTON_R2 = 1 << 7;
+        public static final int BUTTON_L3 = 1 << 8;
+        public static final int BUTTON_R3 = 1 << 9;
+        public static final int BUTTON_SYSTEM = 1 << 10;
+        public static final int BUTTON_DPU = 1 << 15;
+        public static final int BUTTON_DPR = 1 << 16;
+        public static final int BUTTON_DPD = 1 << 17;
+        public static final int BUTTON_DPL = 1 << 18;
+        // The pointer's click, so it gets pressed and released edges like any other button.
+        public static final int BUTTON_POINTER = 1 << 20;
+
+        /**
+         * PointerFlags bits: the pointer is over the view, and it is pressed.
+         */
+        public static final int POINTER_HOVER = 1;
+        public static final int POINTER_DOWN = 2;
+
+        /**
+         * Maps Android key codes to button bits; zero for keys the bridge does not track.
+         */
+        private static final int[] KEY_CODE_TO_BUTTON = new int[256];
+        static {
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_O] = BUTTON_O;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_U] = BUTTON_U;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_Y] = BUTTON_Y;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_A] = BUTTON_A;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_L1] = BUTTON_L1;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_L2] = BUTTON_L2;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_R1] = BUTTON_R1;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_R2] = BUTTON_R2;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_L3] = BUTTON_L3;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_R3] = BUTTON_R3;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_DPAD_UP] = BUTTON_DPU;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_DPAD_RIGHT] = BUTTON_DPR;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_DPAD_DOWN] = BUTTON_DPD;
+            KEY_CODE_TO_BUTTON[OuyaController.BUTTON_DPAD_LEFT] = BUTTON_DPL;
+        }
+
+        public static int ButtonForKeyCode(int keyCode) {
+            if (keyCode < 0 || keyCode >= KEY_CODE_TO_BUTTON.length) {
+                return 0;
+            }
+            return KEY_CODE_TO_BUTTON[keyCode];
+        }
+
+        public float AxisLSX = 0;
+        public float AxisLSY = 0;
+        public float AxisRSX = 0;
+        public float AxisRSY = 0;
+        public float AxisLT = 0;
+        public float AxisRT = 0;
+
+        // The pointer's last position, the movement since the reader last took this state,
+        // and its POINTER_ flags. The position is kept after the pointer leaves.
+        public float PointerX = 0;
+        public float PointerY = 0;
+        public float PointerDeltaX = 0;
+        public float PointerDeltaY = 0;
+        public int PointerFlags = 0;
+
+        // Buttons currently held, as a mask of the BUTTON_ bits.
+        public int Buttons = 0;
+        // Buttons that went down / up since the reader last took this state. A button may be
+        // in both masks when it was tapped between two reads.
+        public int ButtonsPressed = 0;
+        public int ButtonsReleased = 0;
+
+        // SystemClock.uptimeMillis() time of the latest input event applied to this state, and
+        // of the oldest one the reader has not taken yet (0 if there is none).
+        public long EventTime = 0;
+        public long PendingEventTime = 0;
+
+        public boolean GetButton(int button) {
+            return (Buttons & button) != 0;
+        }
+
+        public void SetButtonDown(int button) {
+            if ((Buttons & button) == 0) {
+                Buttons |= button;
+                ButtonsPressed |= button;
+            }
+        }
+
+        public void SetButtonUp(int button) {
+            if ((Buttons & button) != 0) {
+                Buttons &= ~button;
+                ButtonsReleased |= button;
+            }
+        }
+
+        public void SetEventTime(long eventTime) {
+            EventTime = eventTime;
+            if (PendingEventTime == 0) {
+                PendingEventTime = eventTime;
+            }
+        }
+
+        public void ClearEdges() {
+            ButtonsPressed = 0;
+            ButtonsReleased = 0;
+            PointerDeltaX = 0;
+            PointerDeltaY = 0;
+            PendingEventTime = 0;
+        }
+
+        public void Clear() {
+            AxisLSX = 0;
+            AxisLSY = 0;
+            AxisRSX = 0;
+            AxisRSY = 0;
+            AxisLT = 0;
+            AxisRT = 0;
+
+            PointerX = 0;
+            PointerY = 0;
+            PointerDeltaX = 0;
+            PointerDeltaY = 0;
+            PointerFlags = 0;
+
+            Buttons = 0;
+            ButtonsPressed = 0;
+            ButtonsReleased = 0;
+            EventTime = 0;
+            PendingEventTime = 0;
+        }
+
+        public void CopyFrom(ControllerState other) {
+            AxisLSX = other.AxisLSX;
+            AxisLSY = other.AxisLSY;
+            AxisRSX = other.AxisRSX;
+            AxisRSY = other.AxisRSY;
+            AxisLT = other.AxisLT;
+            AxisRT = other.AxisRT;
+
+            PointerX = other.PointerX;
+            PointerY = other.PointerY;
+            PointerDeltaX = other.PointerDeltaX;
+            PointerDeltaY = other.PointerDeltaY;
+            PointerFlags = other.PointerFlags;
+
+            Buttons = other.Buttons;
+            ButtonsPressed = other.ButtonsPressed;
+            ButtonsReleased = other.ButtonsReleased;
+            EventTime = other.EventTime;
+            PendingEventTime = other.PendingEventTime;
+        }
+
+        /**
+         * Adds edges and pointer movement the reader has not seen yet from an earlier state,
+         * along with the time of its oldest unseen event.
+         */
+        public void MergeEdges(ControllerState earlier) {
+            ButtonsPressed |= earlier.ButtonsPressed;
+            ButtonsReleased |= earlier.ButtonsReleased;
+            PointerDeltaX += earlier.PointerDeltaX;
+            PointerDeltaY += earlier.PointerDeltaY;
+            if (earlier.PendingEventTime != 0
+                && (PendingEventTime == 0 || earlier.PendingEventTime < PendingEventTime)) {
+                PendingEventTime = earlier.PendingEventTime;
+            }
+        }
+
+        /**
+         * Writes this state into a packed snapshot array at the given offset.
+         */
+        public void WriteSnapshot(float[] snapshot, int offset) {
+            snapshot[offset + SNAPSHOT_AXIS_LSX] = AxisLSX;
+            snapshot[offset + SNAPSHOT_AXIS_LSY] = AxisLSY;
+            snapshot[offset + SNAPSHOT_AXIS_RSX] = AxisRSX;
+            snapshot[offset + SNAPSHOT_AXIS_RSY] = AxisRSY;
+            snapshot[offset + SNAPSHOT_AXIS_LT] = AxisLT;
+            snapshot[offset + SNAPSHOT_AXIS_RT] = AxisRT;
+            snapshot[offset + SNAPSHOT_BUTTONS] = Buttons;
+            snapshot[offset + SNAPSHOT_BUTTONS_PRESSED] = ButtonsPressed;
+            snapshot[offset + SNAPSHOT_BUTTONS_RELEASED] = ButtonsReleased;
+            snapshot[offset + SNAPSHOT_POINTER_X] = PointerX;
+            snapshot[offset + SNAPSHOT_POINTER_Y] = PointerY;
+            snapshot[offset + SNAPSHOT_POINTER_DX] = PointerDeltaX;
+            snapshot[offset + SNAPSHOT_POINTER_DY] = PointerDeltaY;
+            snapshot[offset + SNAPSHOT_POINTER_FLAGS] = PointerFlags;
+        }
+    }
+
+    /**
+     * Writes the JSON payloads sent to Unity. This replaces a new Gson instance per message, which
+     * reflected over the model classes every time; the output is the same as Gson's defaults,
+     * including the date format and skipped null fields. The StringBuilder is reused between
+     * messages, so calls are serialized on the writer.
+     */
+    public static class BridgeJsonWriter
+    {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final StringBuilder sb = new StringBuilder(1024);
+        private final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.DEFAULT, Locale.US);
+
+        public synchronized String WriteProducts(List<Product> products) {
+            sb.setLength(0);
+            if (products == null) {
+                return "null";
+            }
+            sb.append('[');
+            for (int i=0; i<products.size(); i++) {
+                if (i > 0) sb.append(',');
+                AppendProduct(products.get(i));
+            }
+            return sb.append(']').toString();
+        }
+
+        public synchronized String WriteReceipts(List<Receipt> receipts) {
+            sb.setLength(0);
+            if (receipts == null) {
+                return "null";
+            }
+            sb.append('[');
+            for (int i=0; i<receipts.size(); i++) {
+                if (i > 0) sb.append(',');
+                AppendReceipt(receipts.get(i));
+            }
+            return sb.append(']').toString();
+        }
+
+        public synchronized String WritePurchaseRequest(String uniqueId, String productId) {
+            sb.setLength(0);
+            sb.append('{');
+            boolean first = AppendString("uuid", uniqueId, true);
+            first = AppendString("identifier", productId, first);
+            // This value is only needed for testing, not setting it results in a live purchase
+            AppendString("testing", "true", first);
+            return sb.append('}').toString();
+        }
+
+        public synchronized String WriteDeviceChanges(DeviceChanges changes) {
+            sb.setLength(0);
+            sb.append("{\"reset\":").append(changes.reset).append(",\"added\":[");
+            for (int i=0; i<changes.added.size(); i++) {
+                if (i > 0) sb.append(',');
+                AppendDevice(changes.added.get(i));
+            }
+            sb.append("],\"removed\":[");
+            for (int i=0; i<changes.removed.size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append(changes.removed.get(i).intValue());
+            }
+            return sb.append("]}").toString();
+        }
+
+        private void AppendProduct(Product product) {
+            sb.append('{');
+            boolean first = AppendString("identifier", product.getIdentifier(), true);
+            first = AppendString("name", product.getName(), first);
+            AppendInt("priceInCents", product.getPriceInCents(), first);
+            sb.append('}');
+        }
+
+        private void AppendReceipt(Receipt receipt) {
+            sb.append('{');
+            boolean first = AppendString("identifier", receipt.getIdentifier(), true);
+            first = AppendInt("priceInCents", receipt.getPriceInCents(), first);
+            first = AppendDate("purchaseDate", receipt.getPurchaseDate(), first);
+            AppendDate("generatedDate", receipt.getGeneratedDate(), first);
+            sb.append('}');
+        }
+
+        private void AppendDevice(Device device) {
+            sb.append('{');
+            boolean first = AppendInt("id", device.id, true);
+            first = AppendInt("player", device.player, first);
+            AppendString("name", device.name, first);
+            sb.append('}');
+        }
+
+        // Each Append returns the "first" flag for the next field of the same object.
+        private boolean AppendInt(String name, int value, boolean first) {
+            AppendName(name, first);
+            sb.append(value);
+            return false;
+        }
+
+        private boolean AppendDate(String name, Date value, boolean first) {
+            return AppendString(name, value == null ? null : dateFormat.format(value), first);
+        }
+
+        private boolean AppendString(String name, String value, boolean first) {
+            if (value == null) {
+                return first;
+            }
+            AppendName(name, first);
+            AppendQuoted(value);
+            return false;
+        }
+
+        private void AppendName(String name, boolean first) {
+            if (!first) sb.append(',');
+            sb.append('"').append(name).append("\":");
+        }
+
+        private void AppendQuoted(String value) {
+            sb.append('"');
+            for (int i=0; i<value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    case '\b': sb.append("\\b"); break;
+                    case '\f': sb.append("\\f"); break;
+                    default:
+                        if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '=' || c == '\'' || c == '\u2028' || c == '\u2029') {
+                            // Same escapes as Gson's HTML-safe default.
+                            sb.append("\\u").append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+                                .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+
+    /**
+     * One piece of startup work, run once by whichever thread calls run(). Get() waits for it to
+     * finish and WhenDone() runs a callback after it has, on the given handler's thread if it had
+     * to wait. Logs how long the work took and how long it waited to start, and the error once
+     * if it failed.
+     */
+    public static class StartupTask<T> implements Runnable
+    {
+        private final String name;
+        private final Handler handler;
+        private final Callable<T> work;
+        private final long createdAt = SystemClock.uptimeMillis();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // Written before done is counted down
+        private T value;
+        private Exception error;
+
+        // Guarded by this; null once done
+        private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+        public StartupTask(String name, Handler handler, Callable<T> work) {
+            this.name = name;
+            this.handler = handler;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            long startedAt = SystemClock.uptimeMillis();
+            try {
+                value = work.call();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Startup: " + name + " failed", e);
+                error = e;
+            }
+            Log.i(LOG_TAG, "Startup: " + name + " took " + (SystemClock.uptimeMillis() - startedAt)
+                + " ms, after waiting " + (startedAt - createdAt) + " ms to start");
+            done.countDown();
+
+            List<Runnable> waiting;
+            synchronized (this) {
+                waiting = callbacks;
+                callbacks = null;
+            }
+            for (int i=0; i<waiting.size(); i++) {
+                handler.post(waiting.get(i));
+            }
+        }
+
+        /**
+         * Returns the result, waiting for the work to finish if needed. Throws
+         * IllegalStateException if the work failed.
+         */
+        public T Get() {
+            Await();
+            if (error != null) {
+                throw new IllegalStateException(name + " failed", error);
+            }
+            return value;
+        }
+
+        /**
+         * Returns the result, waiting for the work to finish if needed, or null if it failed.
+         */
+        public T GetIfSucceeded() {
+            Await();
+            return error == null ? value : null;
+        }
+
+        private void Await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void WhenDone(Runnable callback) {
+            synchronized (this) {
+                if (callbacks != null) {
+                    callbacks.add(callback);
+                    return;
+                }
+            }
+            callback.run();
+        }
+    }
+
+    /**
+     * Builds the encrypted Purchasable for a purchase request. Creating a SecureRandom or looking
+     * up a Cipher costs far more than the encryption itself, so one of each is kept and only used
+     * under this object's lock, and a few AES keys and IVs are generated ahead of time on the
+     * background executor. Warm() does all of this before the first purchase.
+     */
+    public static class PurchaseEnvelopeBuilder
+    {
+        private static final int KEY_SIZE = 16;
+        private static final int SPARE_KEYS = 4;
+
+        private final PublicKey publicKey;
+        private final Executor executor;
+
+        // Guarded by this
+        private SecureRandom random;
+        private Cipher aesCipher;
+        private Cipher rsaCipher;
+        private final LinkedList<byte[]> spareKeys = new LinkedList<byte[]>();
+        private boolean refillQueued = false;
+
+        private final Runnable refill = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PurchaseEnvelopeBuilder.this) {
+                    refillQueued = false;
+                }
+                Warm();
+            }
+        };
+
+        public PurchaseEnvelopeBuilder(PublicKey publicKey, Executor executor) {
+            this.publicKey = publicKey;
+            this.executor = executor;
+        }
+
+        /**
+         * Creates the crypto objects and tops up the spare keys. Failures are only logged; Build
+         * tries again and reports them.
+         */
+        public synchronized void Warm() {
+            try {
+                EnsureInstances();
+                while (spareKeys.size() < SPARE_KEYS) {
+                    spareKeys.add(NewKeyAndIv());
+                }
+            } catch (GeneralSecurityException e) {
+                Log.w(LOG_TAG, "Unable to prepare purchase encryption (" + e.getMessage() + ")");
+            }
+        }
+
+        public synchronized String NewUniqueId() throws GeneralSecurityException {
+            EnsureInstances();
+            return Long.toHexString(random.nextLong());
+        }
+
+        public synchronized Purchasable Build(String productId, String uniqueId)
+            throws GeneralSecurityException, UnsupportedEncodingException {
+            long start = System.nanoTime();
+            EnsureInstances();
+            byte[] keyAndIv = spareKeys.poll();
+            if (keyAndIv == null) {
+                keyAndIv = NewKeyAndIv();
+            }
+            QueueRefill();
+
+            byte[] request = jsonWriter.WritePurchaseRequest(uniqueId, productId).getBytes("UTF-8");
+            byte[] payload;
+            byte[] encryptedKey;
+            try {
+                aesCipher.init(Cipher.ENCRYPT_MODE,
+                        new SecretKeySpec(keyAndIv, 0, KEY_SIZE, "AES"),
+                        new IvParameterSpec(keyAndIv, KEY_SIZE, KEY_SIZE));
+                payload = aesCipher.doFinal(request);
+                encryptedKey = rsaCipher.doFinal(keyAndIv, 0, KEY_SIZE);
+            } catch (GeneralSecurityException e) {
+                // Don't reuse ciphers that may have been left part way through an operation.
+                aesCipher = null;
+                rsaCipher = null;
+                throw e;
+            }
+            Purchasable purchasable = new Purchasable(
+                    productId,
+                    Base64.encodeToString(encryptedKey, Base64.NO_WRAP),
+                    Base64.encodeToString(keyAndIv, KEY_SIZE, KEY_SIZE, Base64.NO_WRAP),
+                    Base64.encodeToString(payload, Base64.NO_WRAP));
+            metrics.Record(BridgeMetrics.OP_PURCHASE_ENVELOPE, start);
+            return purchasable;
+        }
+
+        private void EnsureInstances() throws GeneralSecurityException {
+            if (random == null) {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            }
+            if (aesCipher == null) {
+                aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
+            }
+            if (rsaCipher == null) {
+                Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
+                cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+                rsaCipher = cipher;
+            }
+        }
+
+        private byte[] NewKeyAndIv() {
+            byte[] keyAndIv = new byte[KEY_SIZE * 2];
+            random.nextBytes(keyAndIv);
+            return keyAndIv;
+        }
+
+        private void QueueRefill() {
+            if (refillQueued) {
+                return;
+            }
+            try {
+                executor.execute(refill);
+                refillQueued = true;
+            } catch (RejectedExecutionException e) {
+                // Shutting down; Build generates keys itself when it runs out.
+            }
+        }
+    }
+
+    /**
+     * Merges identical requests to the OUYA servers. A request made while another is in flight
+     * waits for that one's result instead of starting its own, unless it asks for a fresh result,
+     * in which case one more request follows when the current one completes. Requests are also
+     * held back until STORE_REQUEST_MIN_INTERVAL_MS has passed since the previous one started.
+     * Every waiting listener receives the shared result; a listener waiting more than once is
+     * called once.
+     */
+    public static abstract class RequestCoalescer<T>
+    {
+        private final Handler handler;
+
+        // Guarded by this
+        private List<OuyaResponseListener<T>> current = new ArrayList<OuyaResponseListener<T>>();
+        private List<OuyaResponseListener<T>> next = new ArrayList<OuyaResponseListener<T>>();
+        private boolean inFlight = false;
+        private boolean scheduled = false;
+        private long lastStartTime = 0;
+
+        private final Runnable startNext = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RequestCoalescer.this) {
+                    scheduled = false;
+                }
+                StartNextIfReady();
+            }
+        };
+
+        public RequestCoalescer(Handler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Issues the real request. The listener must be called exactly once.
+         */
+        protected abstract void Start(OuyaResponseListener<T> listener);
+
+        public void Request(OuyaResponseListener<T> listener, boolean fresh) {
+            synchronized (this) {
+                if (inFlight && !fresh) {
+                    AddOnce(current, listener);
+                    metrics.Increment(BridgeMetrics.COUNTER_STORE_REQUESTS_MERGED);
+                    return;
+                }
+                AddOnce(next, listener);
+            }
+            StartNextIfReady();
+        }
+
+        private static <T> void AddOnce(List<OuyaResponseListener<T>> listeners, OuyaResponseListener<T> listener) {
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+
+        private void StartNextIfReady() {
+            synchronized (this) {
+                if (inFlight || scheduled || next.isEmpty()) {
+                    return;
+                }
+                long wait = lastStartTime + STORE_REQUEST_MIN_INTERVAL_MS - SystemClock.uptimeMillis();
+                if (lastStartTime != 0 && wait > 0) {
+                    scheduled = true;
+                    handler.postDelayed(startNext, wait);
+                    return;
+                }
+                List<OuyaResponseListener<T>> swap = current;
+                current = next;
+                next = swap;
+                inFlight = true;
+                lastStartTime = SystemClock.uptimeMillis();
+            }
+            metrics.Increment(BridgeMetrics.COUNTER_STORE_REQUESTS_STARTED);
+            Start(new OuyaResponseListener<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    for (OuyaResponseListener<T> listener : Finish()) {
+                        listener.onSuccess(result);
+                    }
+                }
+
+                @Override
+                public void onFailure(int errorCode, String errorMessage, Bundle optionalData) {
+                    for (OuyaResponseListener<T> listener : Finish()) {
+                        listener.onFailure(errorCode, errorMessage, optionalData);
+                    }
+                }
+
+                @Override
+                public void onCancel() {
+                    for (OuyaResponseListener<T> listener : Finish()) {
+                        listener.onCancel();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Ends the in-flight request, starts a follow-up if one was asked for, and returns the
+         * listeners waiting on the request that just ended.
+         */
+        private List<OuyaResponseListener<T>> Finish() {
+            List<OuyaResponseListener<T>> waiting;
+            synchronized (this) {
+                waiting = new ArrayList<OuyaResponseListener<T>>(current);
+                current.clear();
+                inFlight = false;
+            }
+            StartNextIfReady();
+            return waiting;
+        }
+    }
+
+    /**
+     * Sends notifications to the OuyaBridge object in Unity. By default each one is a
+     * UnitySendMessage call with a JSON or plain string argument. Once binary messages are
+     * enabled they are instead appended to a queue that Unity drains once per frame, which
+     * avoids building JSON strings here and parsing them with LitJson in C#.
+     *
+     * Each queued record is a type byte and a big-endian int payload length, followed by the
+     * payload. Payloads use big-endian ints, and strings are written as an int byte
+     * count (-1 for null) followed by UTF-8 bytes:
+     * MESSAGE_DEVICES: reset byte, added count, then (id, player, name) per device,
+     * removed count, then each removed id.
+     * MESSAGE_PRODUCTS: count, then (identifier, name, priceInCents) per product.
+     * MESSAGE_RECEIPTS: count, then (identifier, priceInCents, purchaseDate, generatedDate)
+     * per receipt, with the dates formatted as in the JSON messages.
+     * MESSAGE_MENU_BUTTON: player number.
+     * MESSAGE_GAMER_UUID and MESSAGE_PURCHASED: one string.
+     * MESSAGE_PAUSE and MESSAGE_RESUME: empty.
+     * Keep in sync with OuyaBridge.cs.
+     *
+     * The queue holds at most MAX_QUEUE_BYTES, so it cannot grow without bound while Unity is
+     * not draining it. A record that does not fit is dropped whole and counted instead.
+     */
+    public static class BridgeMessenger implements InputEngine.UnitySink
+    {
+        public static final byte MESSAGE_DEVICES = 1;
+        public static final byte MESSAGE_PRODUCTS = 2;
+        public static final byte MESSAGE_RECEIPTS = 3;
+        public static final byte MESSAGE_MENU_BUTTON = 4;
+        public static final byte MESSAGE_PAUSE = 5;
+        public static final byte MESSAGE_RESUME = 6;
+        public static final byte MESSAGE_GAMER_UUID = 7;
+        public static final byte MESSAGE_PURCHASED = 8;
+
+        public static final int MAX_QUEUE_BYTES = 256 * 1024;
+
+        private static final String UNITY_OBJECT = "OuyaBridge";
+
+        private final BridgeJsonWriter json;
+        private final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.DEFAULT, Locale.US);
+        private volatile boolean binaryEnabled = false;
+
+        // Guarded by this. The position is the end of the last complete record.
+        private ByteBuffer queue = ByteBuffer.allocate(4096);
+        private int recordStart;
+        private boolean recordDropped;
+        private volatile long overflowCount = 0;
+
+        public BridgeMessenger(BridgeJsonWriter json) {
+            this.json = json;
+        }
+
+        public void SetBinaryEnabled(boolean enabled) {
+            binaryEnabled = enabled;
+        }
+
+        public boolean IsBinaryEnabled() {
+            return binaryEnabled;
+        }
+
+        public long GetOverflowCount() {
+            return overflowCount;
+        }
+
+        public void SendDeviceChanges(DeviceChanges changes) {
+            if (!binaryEnabled) {
+                UnityPlayer.UnitySendMessage(UNITY_OBJECT, "didChangeDevices", json.WriteDeviceChanges(changes));
+                return;
+            }
+            synchronized (this) {
+                BeginRecord(MESSAGE_DEVICES);
+                PutByte(changes.reset ? (byte) 1 : (byte) 0);
+                PutInt(changes.added.size());
+                for (int i=0; i<changes.added.size(); i++) {
+                    Device device = changes.added.get(i);
+                    PutInt(device.id);
+                    PutInt(device.player);
+                    PutString(device.name);
+                }
+                PutInt(changes.removed.size());
+                for (int i=0; i<changes.removed.size(); i++) {
+                    PutInt(changes.removed.get(i).intValue());
+                }
+                EndRecord();
+            }
+        }
+
+        public void SendProducts(List<Product> products) {
+            if (!binaryEnabled) {
+                UnityPlayer.UnitySendMessage(UNITY_OBJECT, "didFetchProducts", json.WriteProducts(products));
+                return;
+            }
+            synchronized (this) {
+                BeginRecord(MESSAGE_PRODUCTS);
+                int count = products == null ? 0 : products.size();
+                PutInt(count);
+                for (int i=0; i<count; i++) {
+                    Product product = products.get(i);
+                    PutString(product.getIdentifier());
+                    PutString(product.getName());
+                    PutInt(product.getPriceInCents());
+                }
+                EndRecord();
+            }
+        }
+
+        public void SendReceipts(List<Receipt> receipts) {
+            if (!binaryEnabled) {
+                UnityPlayer.UnitySendMessage(UNITY_OBJECT, "didFetchReceipts", json.WriteReceipts(receipts));
+                return;
+            }
+            synchronized (this) {
+                BeginRecord(MESSAGE_RECEIPTS);
+                int count = receipts == null ? 0 : receipts.size();
+                PutInt(count);
+                for (int i=0; i<count; i++) {
+                    Receipt receipt = receipts.get(i);
+                    PutString(receipt.getIdentifier());
+                    PutInt(receipt.getPriceInCents());
+                    PutDate(receipt.getPurchaseDate());
+                    PutDate(receipt.getGeneratedDate());
+                }
+                EndRecord();
+            }
+        }
+
+        public void SendMenuButtonPressed(int playerNum) {
+            if (!binaryEnabled) {
+                UnityPlayer.UnitySendMessage(UNITY_OBJECT, "MenuButtonPressed", "" + playerNum);
+                return;
+            }
+            synchronized (this) {
+                BeginRecord(MESSAGE_MENU_BUTTON);
+                PutInt(playerNum);
+                EndRecord();
+            }
+        }
+
+        public void SendPause() {
+            SendEmpty(MESSAGE_PAUSE, "didPause");
+        }
+
+        public void SendResume() {
+            SendEmpty(MESSAGE_RESUME, "didResume");
+        }
+
+        public void SendGamerUuid(String uuid) {
+            SendString(MESSAGE_GAMER_UUID, "didFetchGamerUuid", uuid);
+        }
+
+        public void SendPurchased(String productId) {
+            SendString(MESSAGE_PURCHASED, "didPurchaseProductId", productId);
+        }
+
+        private void SendEmpty(byte type, String method) {
+            if (!binaryEnabled) {
+                UnityPlayer.UnitySendMessage(UNITY_OBJECT, method, "");
+                return;
+            }
+            synchronized (this) {
+                BeginRecord(type);
+                EndRecord();
+            }
+        }
+
+        private void SendString(byte type, String method, String value) {
+            if (!binaryEnabled) {
+                UnityPlayer.UnitySendMessage(UNITY_OBJECT, method, value);
+                return;
+            }
+            synchronized (this) {
+                BeginRecord(type);
+                PutString(value);
+                EndRecord();
+            }
+        }
+
+        /**
+         * Removes and returns every complete record, or null if the queue is empty. The array is
+         * allocated per call, because JNI hands its whole length to C#; that only happens in
+         * frames with messages, which are rare.
+         */
+        public synchronized byte[] Drain() {
+            if (queue.position() == 0) {
+                return null;
+            }
+            byte[] out = new byte[queue.position()];
+            queue.flip();
+            queue.get(out);
+            queue.clear();
+            return out;
+        }
+
+        private void BeginRecord(byte type) {
+            recordStart = queue.position();
+            recordDropped = false;
+            PutByte(type);
+            PutInt(0); // length, filled in by EndRecord
+        }
+
+        private void EndRecord() {
+            if (recordDropped) {
+                queue.position(recordStart);
+                overflowCount++;
+                Log.w(LOG_TAG, "Dropping a bridge message: " + recordStart + " bytes are waiting for Unity to drain them");
+                return;
+            }
+            queue.putInt(recordStart + 1, queue.position() - recordStart - 5);
+        }
+
+        /**
+         * Makes room for bytes more of the current record, growing the queue up to
+         * MAX_QUEUE_BYTES. Returns false, and marks the record dropped, if it does not fit.
+         */
+        private boolean Ensure(int bytes) {
+            if (recordDropped) {
+                return false;
+            }
+            if (queue.remaining() < bytes) {
+                int needed = queue.position() + bytes;
+                if (needed > MAX_QUEUE_BYTES) {
+                    recordDropped = true;
+                    return false;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(Math.max(queue.capacity() * 2, needed), MAX_QUEUE_BYTES));
+                queue.flip();
+                bigger.put(queue);
+                queue = bigger;
+            }
+            return true;
+        }
+
+        private void PutByte(byte value) {
+            if (Ensure(1)) {
+                queue.put(value);
+            }
+        }
+
+        private void PutInt(int value) {
+            if (Ensure(4)) {
+                queue.putInt(value);
+            }
+        }
+
+        private void PutDate(Date value) {
+            PutString(value == null ? null : dateFormat.format(value));
+        }
+
+        private void PutString(String value) {
+            if (value == null) {
+                PutInt(-1);
+                return;
+            }
+            byte[] bytes;
+            try {
+                bytes = value.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            PutInt(bytes.length);
+            if (Ensure(bytes.length)) {
+                queue.put(bytes);
+            }
+        }
+    }
+
+    /**
+     * How one model of gamepad reports its buttons and axes, compiled into lookup tables so the
+     * input handlers translate an event with an array index per key or axis. Key codes map to
+     * the OuyaController key codes the rest of the bridge understands, and each snapshot axis
+     * reads one Android axis with a scale and offset. Profiles are immutable once parsed.
+     *
+     * A mapping is a space separated list of entries, applied on top of the OUYA layout:
+     * <ul>
+     *   <li>key code=button, as in 108=MENU: an Android key code and the button it is, one of
+     *   O, U, Y, A, LB, RB, LT, RT, L3, R3, UP, DOWN, LEFT, RIGHT or MENU, or NONE to drop it.</li>
+     *   <li>axis=Android axis, as in RSX=12 or LT=17*0.5+0.5: one of LSX, LSY, RSX, RSY, LT or
+     *   RT read from a MotionEvent axis, optionally scaled and then offset.</li>
+     *   <li>HAT=DPAD: the hat axes drive the d-pad buttons, for pads without d-pad key codes.</li>
+     * </ul>
+     */
+    public static class ControllerProfile
+    {
+        private static final int KEY_CODES = 256;
+        private static final int AXES = 6;
+
+        private static final String[] AXIS_NAMES = { "LSX", "LSY", "RSX", "RSY", "LT", "RT" };
+        private static final String[] BUTTON_NAMES = {
+            "O", "U", "Y", "A", "LB", "RB", "LT", "RT", "L3", "R3", "UP", "DOWN", "LEFT", "RIGHT", "MENU", "NONE",
+        };
+        private static final int[] BUTTON_KEY_CODES = {
+            OuyaController.BUTTON_O, OuyaController.BUTTON_U, OuyaController.BUTTON_Y, OuyaController.BUTTON_A,
+            OuyaController.BUTTON_L1, OuyaController.BUTTON_R1, OuyaController.BUTTON_L2, OuyaController.BUTTON_R2,
+            OuyaController.BUTTON_L3, OuyaController.BUTTON_R3,
+            OuyaController.BUTTON_DPAD_UP, OuyaController.BUTTON_DPAD_DOWN,
+            OuyaController.BUTTON_DPAD_LEFT, OuyaController.BUTTON_DPAD_RIGHT,
+            OuyaController.BUTTON_MENU, 0,
+        };
+
+        /**
+         * The OUYA controller's own layout, used for every device without a profile.
+         */
+        public static final ControllerProfile OUYA = new ControllerProfile("OUYA");
+
+        public final String name;
+        private final int[] keyCodes = new int[KEY_CODES];
+        private final int[] axes = {
+            OuyaController.AXIS_LS_X, OuyaController.AXIS_LS_Y, OuyaController.AXIS_RS_X,
+            OuyaController.AXIS_RS_Y, OuyaController.AXIS_L2, OuyaController.AXIS_R2,
+        };
+        private final float[] scales = { 1, 1, 1, 1, 1, 1 };
+        private final float[] offsets = new float[AXES];
+        private boolean hatDpad = false;
+
+        private ControllerProfile(String name) {
+            this.name = name;
+            for (int i=0; i<KEY_CODES; i++) {
+                keyCodes[i] = i;
+            }
+        }
+
+        /**
+         * Compiles a mapping. Throws IllegalArgumentException if an entry does not parse.
+         */
+        public static ControllerProfile Parse(String name, String mapping) {
+            ControllerProfile profile = new ControllerProfile(name);
+            for (String entry : mapping.trim().split("\\s+")) {
+                if (entry.length() == 0) {
+                    continue;
+                }
+                int equals = entry.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("Expected name=value in controller mapping: " + entry);
+                }
+                String key = entry.substring(0, equals).toUpperCase(Locale.US);
+                String value = entry.substring(equals + 1).toUpperCase(Locale.US);
+                if (key.equals("HAT")) {
+                    if (!value.equals("DPAD")) {
+                        throw new IllegalArgumentException("HAT can only be mapped to DPAD: " + entry);
+                    }
+                    profile.hatDpad = true;
+                } else if (Character.isDigit(key.charAt(0))) {
+                    int keyCode = ParseInt(key, entry);
+                    if (keyCode >= KEY_CODES) {
+                        throw new IllegalArgumentException("Key code out of range in controller mapping: " + entry);
+                    }
+                    profile.keyCodes[keyCode] = BUTTON_KEY_CODES[IndexOf(BUTTON_NAMES, value, entry)];
+                } else {
+                    int axis = IndexOf(AXIS_NAMES, key, entry);
+                    // axis[*scale][+offset|-offset]
+                    int star = value.indexOf('*');
+                    int from = star >= 0 ? star + 2 : 1;
+                    int sign = Math.max(value.indexOf('+', from), value.indexOf('-', from));
+                    int end = star >= 0 ? star : sign >= 0 ? sign : value.length();
+                    profile.axes[axis] = ParseInt(value.substring(0, end), entry);
+                    try {
+                        if (star >= 0) {
+                            profile.scales[axis] = Float.parseFloat(value.substring(star + 1, sign > star ? sign : value.length()));
+                        }
+                        if (sign > star) {
+                            profile.offsets[axis] = Float.parseFloat(value.substring(sign));
+                        }
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad axis scale or offset in controller mapping: " + entry);
+                    }
+                }
+            }
+            return profile;
+        }
+
+        private static int ParseInt(String value, String entry) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected a number in controller mapping: " + entry);
+            }
+        }
+
+        private static int IndexOf(String[] names, String name, String entry) {
+            for (int i=0; i<names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Unknown name in controller mapping: " + entry);
+        }
+
+        /**
+         * The OuyaController key code a raw key code stands for, or 0 if it is not mapped.
+         */
+        public int MapKeyCode(int keyCode) {
+            return keyCode >= 0 && keyCode < KEY_CODES ? keyCodes[keyCode] : 0;
+        }
+
+        public boolean HasHatDpad() {
+            return hatDpad;
+        }
+
+        /**
+         * Reads the mapped axes of an event into out, indexed as in the snapshot from offset.
+         */
+        public void ReadAxes(MotionEvent event, float[] out, int offset) {
+            for (int i=0; i<AXES; i++) {
+                out[offset + i] = event.getAxisValue(axes[i]) * scales[i] + offsets[i];
+            }
+        }
+
+        public void ReadHistoricalAxes(MotionEvent event, int pos, float[] out, int offset) {
+            for (int i=0; i<AXES; i++) {
+                out[offset + i] = event.getHistoricalAxisValue(axes[i], pos) * scales[i] + offsets[i];
+            }
+        }
+    }
+
+    /**
+     * The controller profiles known to the bridge, found by USB vendor and product id where
+     * Android reports them (API 19 and later) and by device name otherwise. Profiles are looked
+     * up once per device, when it is read; lookups and changes may come from any thread.
+     */
+    public static class ControllerProfiles
+    {
+        private final Map<Integer, ControllerProfile> byId = new HashMap<Integer, ControllerProfile>();
+        private final Map<String, ControllerProfile> byName = new HashMap<String, ControllerProfile>();
+
+        public ControllerProfiles() {
+            // Wired and wireless Xbox 360 pads: the OUYA layout apart from the d-pad on the hat and
+            // START for the menu button.
+            ControllerProfile xbox = ControllerProfile.Parse("Xbox 360", "108=MENU HAT=DPAD");
+            Add(0x045E, 0x028E, "Microsoft X-Box 360 pad", xbox);
+            Add(0x045E, 0x0719, "Xbox 360 Wireless Receiver", xbox);
+        }
+
+        /**
+         * Registers a profile for a vendor and product id, a device name, or both; pass 0 or
+         * null for whichever is not known. Replaces any profile registered for the same keys.
+         */
+        public synchronized void Add(int vendorId, int productId, String deviceName, ControllerProfile profile) {
+            if (vendorId != 0 || productId != 0) {
+                byId.put((vendorId << 16) | (productId & 0xFFFF), profile);
+            }
+            if (deviceName != null && deviceName.length() > 0) {
+                byName.put(deviceName, profile);
+            }
+        }
+
+        public synchronized void Clear() {
+            byId.clear();
+            byName.clear();
+        }
+
+        /**
+         * The profile for a device, or null if it has none and uses the OUYA layout.
+         */
+        public synchronized ControllerProfile Find(int vendorId, int productId, String deviceName) {
+            ControllerProfile profile = null;
+            if (vendorId != 0 || productId != 0) {
+                profile = byId.get((vendorId << 16) | (productId & 0xFFFF));
+            }
+            if (profile == null && deviceName != null) {
+                profile = byName.get(deviceName);
+            }
+            return profile;
+        }
+    }
+
+    /**
+     * Small open-addressed map from input device id to player number and controller profile, so
+     * the input handlers resolve a device with one probe and no boxing. Devices not in the map
+     * read as UNKNOWN; devices known not to be controllers are stored as
+     * DEVICE_NOT_OUYACONTROLLER_COMPATIBLE. A new map is built on every device change rather
+     * than updating entries in place.
+     */
+    public static class DevicePlayerMap
+    {
+        public static final int UNKNOWN = -2;
+        private static final int CAPACITY = 64;
+        private static final int MAX_ENTRIES = CAPACITY / 2;
+        private static final int EMPTY = Integer.MIN_VALUE;
+
+        private final int[] deviceIds = new int[CAPACITY];
+        private final int[] players = new int[CAPACITY];
+        private final ControllerProfile[] profiles = new ControllerProfile[CAPACITY];
+        private int size = 0;
+
+        public DevicePlayerMap() {
+            Arrays.fill(deviceIds, EMPTY);
+        }
+
+        public static DevicePlayerMap Build(List<Device> devices) {
+            DevicePlayerMap map = new DevicePlayerMap();
+            for (int i=0; i<devices.size(); i++) {
+                Device device = devices.get(i);
+                if (device.player != DEVICE_NOT_OUYACONTROLLER_COMPATIBLE) {
+                    map.Put(device.id, device.player, device.profile);
+                }
+            }
+            return map;
+        }
+
+        private static int Slot(int deviceId) {
+            // Spread sequential ids across the table.
+            return (deviceId * 0x9E3779B9) >>> 26;
+        }
+
+        public int GetPlayer(int deviceId) {
+            for (int slot = Slot(deviceId); ; slot = (slot + 1) & (CAPACITY - 1)) {
+                int key = deviceIds[slot];
+                if (key == deviceId) {
+                    return players[slot];
+                }
+                if (key == EMPTY) {
+                    return UNKNOWN;
+                }
+            }
+        }
+
+        /**
+         * The profile stored for a device, or null if it has none or is not in the map.
+         */
+        public ControllerProfile GetProfile(int deviceId) {
+            for (int slot = Slot(deviceId); ; slot = (slot + 1) & (CAPACITY - 1)) {
+                int key = deviceIds[slot];
+                if (key == deviceId) {
+                    return profiles[slot];
+                }
+                if (key == EMPTY) {
+                    return null;
+                }
+            }
+        }
+
+        public void Put(int deviceId, int playerNum) {
+            Put(deviceId, playerNum, null);
+        }
+
+        public void Put(int deviceId, int playerNum, ControllerProfile profile) {
+            for (int slot = Slot(deviceId); ; slot = (slot + 1) & (CAPACITY - 1)) {
+                int key = deviceIds[slot];
+                if (key == deviceId) {
+                    players[slot] = playerNum;
+                    profiles[slot] = profile;
+                    return;
+                }
+                if (key == EMPTY) {
+                    if (size >= MAX_ENTRIES) {
+                        // Not worth growing for; lookups fall back to readDevice.
+                        return;
+                    }
+                    players[slot] = playerNum;
+                    profiles[slot] = profile;
+                    deviceIds[slot] = deviceId;
+                    size++;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands out player slots to controllers. The first reserved slots belong to controllers the
+     * OUYA SDK numbers, which Claim the slot of their SDK player number, so the player Unity sees
+     * matches the controller's LED and the SDK. Other controllers are Assigned slots after
+     * those: a controller keeps its slot while connected, and its descriptor is remembered after
+     * it leaves so it gets the same slot back on reconnect unless someone else took it. New
+     * controllers prefer slots nobody has used. All methods are synchronized; GetSlotCount is a
+     * volatile read for the per-frame path.
+     */
+    public static class PlayerSlots
+    {
+        private static final int NONE = Integer.MIN_VALUE;
+
+        private final int[] deviceIds;
+        private final String[] descriptors;
+        private final int reserved;
+        private volatile int slotCount = 0;
+
+        public PlayerSlots(int capacity, int reserved) {
+            deviceIds = new int[capacity];
+            descriptors = new String[capacity];
+            this.reserved = Math.max(0, Math.min(reserved, capacity));
+            Arrays.fill(deviceIds, NONE);
+        }
+
+        public int GetCapacity() {
+            return deviceIds.length;
+        }
+
+        /**
+         * One more than the highest slot handed out so far, or 0 before any controller connects.
+         * It never shrinks, so a player who leaves still has their cleared state delivered.
+         */
+        public int GetSlotCount() {
+            return slotCount;
+        }
+
+        public synchronized int GetSlot(int deviceId) {
+            for (int i=0; i<deviceIds.length; i++) {
+                if (deviceIds[i] == deviceId) {
+                    return i;
+                }
+            }
+            return DEVICE_NOT_OUYACONTROLLER_COMPATIBLE;
+        }
+
+        /**
+         * Gives a device the slot the OUYA SDK numbered it with, moving it there if it had
+         * another. A device the SDK numbered the same before is displaced. Returns a mask of
+         * the slots that changed hands, whose state belongs to someone else now; the caller
+         * must check that slot is below GetCapacity().
+         */
+        public synchronized int Claim(int deviceId, String descriptor, int slot) {
+            int changed = 0;
+            int previous = GetSlot(deviceId);
+            if (previous == slot) {
+                return 0;
+            }
+            if (previous >= 0) {
+                deviceIds[previous] = NONE;
+                changed |= 1 << previous;
+            }
+            if (deviceIds[slot] != NONE) {
+                changed |= 1 << slot;
+            }
+            deviceIds[slot] = deviceId;
+            descriptors[slot] = descriptor;
+            if (slot >= slotCount) {
+                slotCount = slot + 1;
+            }
+            return changed;
+        }
+
+        /**
+         * Returns the slot for a device the OUYA SDK does not number, assigning one after the
+         * reserved slots if it has none, or DEVICE_NOT_OUYACONTROLLER_COMPATIBLE if every one
+         * of those is taken.
+         */
+        public synchronized int Assign(int deviceId, String descriptor) {
+            int slot = GetSlot(deviceId);
+            if (slot < 0 && descriptor != null) {
+                for (int i=reserved; i<descriptors.length; i++) {
+                    if (deviceIds[i] == NONE && descriptor.equals(descriptors[i])) {
+                        slot = i;
+                        break;
+                    }
+                }
+            }
+            if (slot < 0) {
+                slot = FirstFree(true);
+            }
+            if (slot < 0) {
+                slot = FirstFree(false);
+            }
+            if (slot >= 0) {
+                deviceIds[slot] = deviceId;
+                descriptors[slot] = descriptor;
+                if (slot >= slotCount) {
+                    slotCount = slot + 1;
+                }
+            }
+            return slot;
+        }
+
+        /**
+         * Frees the slot of a device, returning a mask with its bit set, or 0 if it had none.
+         */
+        public synchronized int Release(int deviceId) {
+            int slot = GetSlot(deviceId);
+            if (slot < 0) {
+                return 0;
+            }
+            deviceIds[slot] = NONE;
+            return 1 << slot;
+        }
+
+        /**
+         * Frees the slots of every device not in the given list, returning a mask of them.
+         */
+        public synchronized int ReleaseMissing(int[] presentIds) {
+            int released = 0;
+            for (int i=0; i<deviceIds.length; i++) {
+                if (deviceIds[i] == NONE) {
+                    continue;
+                }
+                boolean present = false;
+                for (int j=0; j<presentIds.length; j++) {
+                    if (presentIds[j] == deviceIds[i]) {
+                        present = true;
+                        break;
+                    }
+                }
+                if (!present) {
+                    deviceIds[i] = NONE;
+                    released |= 1 << i;
+                }
+            }
+            return released;
+        }
+
+        private int FirstFree(boolean unused) {
+            for (int i=reserved; i<deviceIds.length; i++) {
+                if (deviceIds[i] == NONE && (!unused || descriptors[i] == null)) {
+                    return i;
+                }
+            }
+            return DEVICE_NOT_OUYACONTROLLER_COMPATIBLE;
+        }
+    }
+
+    /**
+     * The last known product list and receipts, kept in a small binary file so a cold start can
+     * hand them to Unity before the store answers. Receipts belong to the gamer they were fetched
+     * for and are dropped when a different gamer is seen. The file is read once through a memory
+     * map and rewritten whole, via a temporary file, on every update; anything unreadable,
+     * including a file written by another version, is discarded.
+     */
+    public static class StoreCache
+    {
+        private static final int MAGIC = 0x4F555943; // "OUYC"
+        private static final int VERSION = 1;
+        private static final long NO_DATE = Long.MIN_VALUE;
+
+        private final File file;
+
+        // Guarded by this
+        private List<Product> products;
+        private List<Receipt> receipts;
+        private String gamerUuid;
+
+        public StoreCache(File file) {
+            this.file = file;
+        }
+
+        public synchronized List<Product> GetProducts() {
+            return products;
+        }
+
+        public synchronized List<Receipt> GetReceipts() {
+            return receipts;
+        }
+
+        public synchronized String GetGamerUuid() {
+            return gamerUuid;
+        }
+
+        /**
+         * Loads the file, leaving everything null if it is missing or unreadable.
+         */
+        public synchronized void Load() {
+            if (!file.exists()) {
+                return;
+            }
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                FileChannel channel = in.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    throw new IOException("unknown cache format");
+                }
+                String uuid = GetString(buffer);
+                List<Product> productList = null;
+                int productCount = buffer.getInt();
+                if (productCount >= 0) {
+                    productList = new ArrayList<Product>(productCount);
+                    for (int i=0; i<productCount; i++) {
+                        String identifier = GetString(buffer);
+                        String name = GetString(buffer);
+                        productList.add(new Product(identifier, name, buffer.getInt()));
+                    }
+                }
+                List<Receipt> receiptList = null;
+                int receiptCount = buffer.getInt();
+                if (receiptCount >= 0) {
+                    receiptList = new ArrayList<Receipt>(receiptCount);
+                    for (int i=0; i<receiptCount; i++) {
+                        String identifier = GetString(buffer);
+                        int priceInCents = buffer.getInt();
+                        Date purchaseDate = GetDate(buffer);
+                        receiptList.add(new Receipt(identifier, priceInCents, purchaseDate, GetDate(buffer)));
+                    }
+                }
+                gamerUuid = uuid;
+                products = productList;
+                receipts = receiptList;
+            } catch (Exception e) {
+                // Truncated files surface as BufferUnderflowException, so catch everything.
+                Log.w(LOG_TAG, "Discarding unreadable store cache (" + e + ")");
+                file.delete();
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Nothing useful to do
+                    }
+                }
+            }
+        }
+
+        public void PutProducts(List<Product> products) {
+            synchronized (this) {
+                this.products = products;
+            }
+            Save();
+        }
+
+        public void PutReceipts(String gamerUuid, List<Receipt> receipts) {
+            synchronized (this) {
+                this.gamerUuid = gamerUuid;
+                this.receipts = receipts;
+            }
+            Save();
+        }
+
+        /**
+         * Forgets the cached receipts if they were fetched for a different gamer. Returns true if
+         * any were dropped.
+         */
+        public boolean InvalidateReceipts(String currentGamerUuid) {
+            synchronized (this) {
+                if (receipts == null || (gamerUuid != null && gamerUuid.equals(currentGamerUuid))) {
+                    return false;
+                }
+                gamerUuid = null;
+                receipts = null;
+            }
+            Save();
+            return true;
+        }
+
+        private void Save() {
+            ByteBuffer buffer;
+            synchronized (this) {
+                buffer = Encode();
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                out.getChannel().write(buffer);
+                out.close();
+                out = null;
+                if (!temp.renameTo(file)) {
+                    throw new IOException("rename failed");
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Unable to write store cache (" + e.getMessage() + ")");
+                temp.delete();
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Nothing useful to do
+                    }
+                }
+            }
+        }
+
+        private ByteBuffer Encode() {
+            List<byte[]> strings = new ArrayList<byte[]>();
+            int size = 4 + 4 + 4 + 4;
+            size += AddString(strings, gamerUuid);
+            if (products != null) {
+                for (int i=0; i<products.size(); i++) {
+                    Product product = products.get(i);
+                    size += AddString(strings, product.getIdentifier()) + AddString(strings, product.getName()) + 4;
+                }
+            }
+            if (receipts != null) {
+                for (int i=0; i<receipts.size(); i++) {
+                    size += AddString(strings, receipts.get(i).getIdentifier()) + 4 + 8 + 8;
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            int next = 0;
+            buffer.putInt(MAGIC).putInt(VERSION);
+            PutString(buffer, strings.get(next++));
+            buffer.putInt(products != null ? products.size() : -1);
+            if (products != null) {
+                for (int i=0; i<products.size(); i++) {
+                    PutString(buffer, strings.get(next++));
+                    PutString(buffer, strings.get(next++));
+                    buffer.putInt(products.get(i).getPriceInCents());
+                }
+            }
+            buffer.putInt(receipts != null ? receipts.size() : -1);
+            if (receipts != null) {
+                for (int i=0; i<receipts.size(); i++) {
+                    Receipt receipt = receipts.get(i);
+                    PutString(buffer, strings.get(next++));
+                    buffer.putInt(receipt.getPriceInCents());
+                    PutDate(buffer, receipt.getPurchaseDate());
+                    PutDate(buffer, receipt.getGeneratedDate());
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private static int AddString(List<byte[]> strings, String value) {
+            byte[] bytes = null;
+            if (value != null) {
+                try {
+                    bytes = value.getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            strings.add(bytes);
+            return 4 + (bytes != null ? bytes.length : 0);
+        }
+
+        private static void PutString(ByteBuffer buffer, byte[] bytes) {
+            if (bytes == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(bytes.length).put(bytes);
+            }
+        }
+
+        private static String GetString(ByteBuffer buffer) throws UnsupportedEncodingException {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        private static void PutDate(ByteBuffer buffer, Date date) {
+            buffer.putLong(date != null ? date.getTime() : NO_DATE);
+        }
+
+        private static Date GetDate(ByteBuffer buffer) {
+            long time = buffer.getLong();
+            return time != NO_DATE ? new Date(time) : null;
+        }
+    }
+
+    /**
+     * Counters and latency histograms for the bridge's own work, cheap enough to leave on in
+     * release builds: recording is a handful of atomic adds and never allocates. Each operation
+     * keeps STRIDE longs: its count, total and maximum duration in nanoseconds, then BUCKETS
+     * histogram buckets. Bucket 0 counts durations under 1 microsecond and bucket i counts those
+     * from 2^(i-1) up to 2^i microseconds; the last bucket also takes everything longer.
+     */
+    public static class BridgeMetrics
+    {
+        public static final int COUNTER_DEVICE_NOTIFICATIONS = 0;
+        public static final int COUNTER_RECEIPT_RESPONSES = 1;
+        public static final int COUNTER_STORE_REQUESTS_STARTED = 2;
+        public static final int COUNTER_STORE_REQUESTS_MERGED = 3;
+        public static final String[] COUNTER_NAMES = {
+            "deviceNotifications", "receiptResponses", "storeRequestsStarted", "storeRequestsMerged"
+        };
+
+        public static final int OP_SEND_DEVICES = 0;
+        public static final int OP_SEND_DEVICE_CHANGES = 1;
+        public static final int OP_PROCESS_RECEIPTS = 2;
+        public static final int OP_PURCHASE_ENVELOPE = 3;
+        public static final int OP_KEY_EVENT = 4;
+        public static final int OP_MOTION_EVENT = 5;
+        public static final int OP_CONTROLLER_SNAPSHOT = 6;
+        public static final String[] OP_NAMES = {
+            "sendDevices", "sendDeviceChanges", "processReceipts", "purchaseEnvelope",
+            "keyEvent", "motionEvent", "controllerSnapshot"
+        };
+
+        public static final int BUCKETS = 24;
+        public static final int COUNT = 0;
+        public static final int TOTAL_NANOS = 1;
+        public static final int MAX_NANOS = 2;
+        public static final int FIRST_BUCKET = 3;
+        public static final int STRIDE = FIRST_BUCKET + BUCKETS;
+
+        private final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+        private final AtomicLongArray ops = new AtomicLongArray(OP_NAMES.length * STRIDE);
+
+        public void Increment(int counter) {
+            counters.incrementAndGet(counter);
+        }
+
+        /**
+         * Records one run of op that started at startNanos, a System.nanoTime() value.
+         */
+        public void Record(int op, long startNanos) {
+            long nanos = System.nanoTime() - startNanos;
+            int base = op * STRIDE;
+            ops.incrementAndGet(base + COUNT);
+            ops.addAndGet(base + TOTAL_NANOS, nanos);
+            long max = ops.get(base + MAX_NANOS);
+            while (nanos > max && !ops.compareAndSet(base + MAX_NANOS, max, nanos)) {
+                max = ops.get(base + MAX_NANOS);
+            }
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            ops.incrementAndGet(base + FIRST_BUCKET + Math.min(bucket, BUCKETS - 1));
+        }
+
+        /**
+         * Returns every counter followed by every operation's STRIDE values, in the order of
+         * COUNTER_NAMES and OP_NAMES. Updates made while copying may be partly included.
+         */
+        public long[] Snapshot() {
+            long[] values = new long[counters.length() + ops.length()];
+            for (int i=0; i<counters.length(); i++) {
+                values[i] = counters.get(i);
+            }
+            for (int i=0; i<ops.length(); i++) {
+                values[counters.length() + i] = ops.get(i);
+            }
+            return values;
+        }
+
+        public void Reset() {
+            for (int i=0; i<counters.length(); i++) {
+                counters.set(i, 0);
+            }
+            for (int i=0; i<ops.length(); i++) {
+                ops.set(i, 0);
+            }
+        }
+
+        /**
+         * Writes every counter and every operation that has run to logcat, one line each.
+         */
+        public void Dump() {
+            long[] values = Snapshot();
+            for (int i=0; i<COUNTER_NAMES.length; i++) {
+                Log.i(LOG_TAG, "Metrics: " + COUNTER_NAMES[i] + " = " + values[i]);
+            }
+            for (int op=0; op<OP_NAMES.length; op++) {
+                int base = COUNTER_NAMES.length + op * STRIDE;
+                long count = values[base + COUNT];
+                if (count == 0) {
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder("Metrics: ").append(OP_NAMES[op])
+                    .append(" n=").append(count)
+                    .append(" mean=").append(values[base + TOTAL_NANOS] / count / 1000).append("us")
+                    .append(" max=").append(values[base + MAX_NANOS] / 1000).append("us");
+                for (int bucket=0; bucket<BUCKETS; bucket++) {
+                    long n = values[base + FIRST_BUCKET + bucket];
+                    if (n != 0) {
+                        sb.append(bucket < BUCKETS - 1 ? " <" : " >=")
+                            .append(1L << (bucket < BUCKETS - 1 ? bucket : bucket - 1)).append("us:").append(n);
+                    }
+                }
+                Log.i(LOG_TAG, sb.toString());
+            }
+        }
+    }
+
+    /**
+     * The most recent samples of a latency in milliseconds, kept in a fixed ring so that old
+     * behaviour ages out. Percentiles are computed on request by sorting a copy.
+     */
+    public static class LatencyWindow
+    {
+        private final int[] samples;
+        private int count = 0;
+        private int next = 0;
+
+        public LatencyWindow(int capacity) {
+            samples = new int[capacity];
+        }
+
+        public synchronized void Add(int latency) {
+            samples[next] = latency;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) {
+                count++;
+            }
+        }
+
+        public synchronized void Clear() {
+            count = 0;
+            next = 0;
+        }
+
+        /**
+         * Returns the requested percentiles, by nearest rank, followed by the sample count; or
+         * null if there are no samples.
+         */
+        public synchronized int[] Percentiles(int... percents) {
+            if (count == 0) {
+                return null;
+            }
+            int[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int[] result = new int[percents.length + 1];
+            for (int i=0; i<percents.length; i++) {
+                int rank = (percents[i] * count + 99) / 100;
+                result[i] = sorted[Math.max(rank, 1) - 1];
+            }
+            result[percents.length] = count;
+            return result;
+        }
+    }
+
+    /**
+     * Fixed-capacity ring of timestamped input events with one writer (the UI thread) and one
+     * reader (Unity's main thread). Adding an event never allocates; when the ring is full the
+     * new event is dropped and counted instead.
+     */
+    public static class InputEventBuffer
+    {
+        /**
+         * Set in an event's code when it is an axis (OuyaController.AXIS_*) rather than a key code.
+         */
+        public static final int AXIS_CODE = 0x10000;
+
+        private final int mask;
+        private final long[] times;
+        private final int[] players;
+        private final int[] codes;
+        private final float[] values;
+
+        // Total events ever written (writer) and read (reader). Their difference is the fill level.
+        private volatile long tail = 0;
+        private volatile long head = 0;
+        private volatile long overflowCount = 0;
+
+        public InputEventBuffer(int capacity) {
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            mask = size - 1;
+            times = new long[size];
+            players = new int[size];
+            codes = new int[size];
+            values = new float[size];
+        }
+
+        public int GetCapacity() {
+            return mask + 1;
+        }
+
+        public long GetOverflowCount() {
+            return overflowCount;
+        }
+
+        /**
+         * Appends an event. Writer thread only. Returns false if the ring was full.
+         */
+        public boolean Add(int playerNum, int code, float value, long eventTime) {
+            long t = tail;
+            if (t - head > mask) {
+                overflowCount++;
+                return false;
+            }
+            int slot = (int) t & mask;
+            times[slot] = eventTime;
+            players[slot] = playerNum;
+            codes[slot] = code;
+            values[slot] = value;
+            tail = t + 1;
+            return true;
+        }
+
+        /**
+         * Removes every pending event. Reader thread only. Each event takes two longs: the event
+         * time in SystemClock.uptimeMillis() milliseconds, followed by the player number in bits
+         * 56-63, the code in bits 32-55 and the raw float bits of the value in bits 0-31.
+         * Returns null if nothing is pending.
+         */
+        public long[] Drain() {
+            long h = head;
+            long t = tail;
+            if (t == h) {
+                return null;
+            }
+            long[] out = new long[(int) (t - h) * 2];
+            for (int i=0; h<t; h++, i+=2) {
+                int slot = (int) h & mask;
+                out[i] = times[slot];
+                out[i + 1] = ((long) players[slot] << 56)
+                    | ((long) (codes[slot] & 0xFFFFFF) << 32)
+                    | (Float.floatToRawIntBits(values[slot]) & 0xFFFFFFFFL);
+            }
+            head = t;
+            return out;
+        }
+    }
+
+    /**
+     * Shapes one player's six axes, indexed as in the snapshot. Settings may be changed from any
+     * thread: each change swaps in a new settings array, which Apply() reads once per call.
+     * Apply() and Reset() belong to the UI thread. Smoothing only advances when a motion event
+     * arrives.
+     */
+    public static class AxisFilter
+    {
+        private static final int AXES = 6;
+        // Per axis settings, SETTINGS_PER_AXIS each, followed by the two radial deadzones.
+        private static final int DEADZONE = 0;
+        private static final int EXPONENT = 1;
+        private static final int SMOOTHING = 2;
+        private static final int JITTER = 3;
+        private static final int SETTINGS_PER_AXIS = 4;
+        private static final int RADIAL = AXES * SETTINGS_PER_AXIS;
+        // Smoothing jumps straight to the target once this close to it.
+        private static final float SMOOTHING_SNAP = 0.001f;
+
+        private volatile float[] settings;
+
+        // UI thread only
+        private final float[] values = new float[AXES];
+        private final float[] last = new float[AXES];
+
+        public AxisFilter() {
+            float[] defaults = new float[RADIAL + 2];
+            for (int axis=0; axis<AXES; axis++) {
+                defaults[axis * SETTINGS_PER_AXIS + EXPONENT] = 1;
+                defaults[axis * SETTINGS_PER_AXIS + SMOOTHING] = 1;
+            }
+            settings = defaults;
+        }
+
+        public synchronized void SetStickDeadzone(int stick, float radius) {
+            float[] updated = settings.clone();
+            updated[RADIAL + stick] = Math.max(0, Math.min(radius, 0.99f));
+            settings = updated;
+        }
+
+        public synchronized void SetAxis(int axis, float deadzone, float exponent, float smoothing, float jitter) {
+            float[] updated = settings.clone();
+            int base = axis * SETTINGS_PER_AXIS;
+            updated[base + DEADZONE] = Math.max(0, Math.min(deadzone, 0.99f));
+            updated[base + EXPONENT] = exponent > 0 ? exponent : 1;
+            updated[base + SMOOTHING] = smoothing > 0 && smoothing < 1 ? smoothing : 1;
+            updated[base + JITTER] = Math.max(0, jitter);
+            settings = updated;
+        }
+
+        /**
+         * Forgets the previous output, so smoothing starts over from the next raw values.
+         */
+        public void Reset() {
+            Arrays.fill(last, 0);
+        }
+
+        /**
+         * Returns the filtered axes in an array that is reused by the next call.
+         */
+        public float[] Apply(float lsx, float lsy, float rsx, float rsy, float lt, float rt) {
+            float[] s = settings;
+            Radial(lsx, lsy, s[RADIAL], SNAPSHOT_AXIS_LSX);
+            Radial(rsx, rsy, s[RADIAL + 1], SNAPSHOT_AXIS_RSX);
+            values[SNAPSHOT_AXIS_LT] = lt;
+            values[SNAPSHOT_AXIS_RT] = rt;
+            for (int axis=0; axis<AXES; axis++) {
+                int base = axis * SETTINGS_PER_AXIS;
+                float v = values[axis];
+                float magnitude = Math.abs(v);
+                float deadzone = s[base + DEADZONE];
+                if (magnitude <= deadzone) {
+                    magnitude = 0;
+                } else {
+                    magnitude = Math.min((magnitude - deadzone) / (1 - deadzone), 1);
+                    if (s[base + EXPONENT] != 1) {
+                        magnitude = (float) Math.pow(magnitude, s[base + EXPONENT]);
+                    }
+                }
+                float target = v < 0 ? -magnitude : magnitude;
+                float previous = last[axis];
+                v = target;
+                if (s[base + SMOOTHING] != 1) {
+                    v = previous + s[base + SMOOTHING] * (target - previous);
+                    if (Math.abs(target - v) < SMOOTHING_SNAP) {
+                        v = target;
+                    }
+                }
+                // Rest and full deflection always get through, so a stick never sticks
+                // just short of them.
+                if (target != 0 && magnitude != 1 && Math.abs(v - previous) < s[base + JITTER]) {
+                    v = previous;
+                }
+                last[axis] = v;
+                values[axis] = v;
+            }
+            return values;
+        }
+
+        private void Radial(float x, float y, float deadzone, int axis) {
+            if (deadzone > 0) {
+                float magnitude = (float) Math.sqrt(x * x + y * y);
+                if (magnitude <= deadzone) {
+                    x = 0;
+                    y = 0;
+                } else {
+                    float scale = (Math.min(magnitude, 1) - deadzone) / (1 - deadzone) / magnitude;
+                    x *= scale;
+                    y *= scale;
+                }
+            }
+            values[axis] = x;
+            values[axis + 1] = y;
+        }
+    }
+
+    /**
+     * Fixed-capacity ring of one player's axis samples, with the same single writer / single
+     * reader rules as InputEventBuffer. A sample is the time plus all six axes.
+     */
+    public static class AxisSampleBuffer
+    {
+        public static final int LONGS_PER_SAMPLE = 4;
+        private static final int AXES = 6;
+
+        private final int mask;
+        private final long[] times;
+        private final float[] axes;
+
+        private volatile long tail = 0;
+        private volatile long head = 0;
+        private volatile long overflowCount = 0;
+
+        public AxisSampleBuffer(int capacity) {
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            mask = size - 1;
+            times = new long[size];
+            axes = new float[size * AXES];
+        }
+
+        public long GetOverflowCount() {
+            return overflowCount;
+        }
+
+        public int GetPendingCount() {
+            return (int) (tail - head);
+        }
+
+        /**
+         * Appends the historical samples of a motion event, oldest first, then its current
+         * values, read through the device's profile. Writer thread only.
+         */
+        public void AddMotionEvent(MotionEvent event, ControllerProfile profile) {
+            int history = event.getHistorySize();
+            for (int pos=0; pos<history; pos++) {
+                int slot = Reserve();
+                if (slot < 0) {
+                    return;
+                }
+                times[slot] = event.getHistoricalEventTime(pos);
+                profile.ReadHistoricalAxes(event, pos, axes, slot * AXES);
+                tail = tail + 1;
+            }
+            int slot = Reserve();
+            if (slot < 0) {
+                return;
+            }
+            times[slot] = event.getEventTime();
+            profile.ReadAxes(event, axes, slot * AXES);
+            tail = tail + 1;
+        }
+
+        // Returns the slot for the next sample, or -1 after counting an overflow.
+        private int Reserve() {
+            long t = tail;
+            if (t - head > mask) {
+                overflowCount++;
+                return -1;
+            }
+            return (int) t & mask;
+        }
+
+        /**
+         * Moves as many pending samples as fit into out, starting at offset, and returns the
+         * offset after the last one. Reader thread only. Each sample takes
+         * LONGS_PER_SAMPLE longs: the player number in bits 56-63 above the event time in
+         * SystemClock.uptimeMillis() milliseconds, then the raw float bits of the axes in pairs,
+         * high word first: LS X and Y, RS X and Y, L2 and R2.
+         */
+        public int Drain(int playerNum, long[] out, int offset) {
+            long h = head;
+            long t = Math.min(tail, h + (out.length - offset) / LONGS_PER_SAMPLE);
+            for (; h<t; h++) {
+                int slot = (int) h & mask;
+                int base = slot * AXES;
+                out[offset++] = ((long) playerNum << 56) | times[slot];
+                out[offset++] = Pack(axes[base], axes[base + 1]);
+                out[offset++] = Pack(axes[base + 2], axes[base + 3]);
+                out[offset++] = Pack(axes[base + 4], axes[base + 5]);
+            }
+            head = t;
+            return offset;
+        }
+
+        private static long Pack(float high, float low) {
+            return ((long) Float.floatToRawIntBits(high) << 32) | (Float.floatToRawIntBits(low) & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Lock-free triple buffer of every player's ControllerState with one writer (the UI thread)
+     * and one reader (Unity's main thread). The writer edits the working states and calls
+     * Publish(), which copies them into its back frame and swaps that frame into the middle
+     * slot. The reader calls Acquire() to swap the middle slot into its front frame if anything
+     * was published since the last call. Each side only touches its own frame, so the reader
+     * always sees a complete update and neither side ever waits for the other.
+     * Button edges are carried forward into the next publish until the reader has taken them,
+     * so a press and release between two reads is never lost. The same goes for the mask of
+     * players changed since the reader's last Acquire().
+     */
+    public static class ControllerStateStore
+    {
+        private static final int INDEX_MASK = 3;
+        private static final int FRESH = 4;
+
+        private final ControllerState[] working;
+        private final ControllerState[][] frames = new ControllerState[3][];
+        private final long[] frameSequences = new long[3];
+        private final int[] frameDirtyPlayers = new int[3];
+
+        // Index of the middle frame, plus FRESH if the reader has not taken it yet.
+        private final AtomicInteger middle = new AtomicInteger(1);
+        private volatile long publishedSequence = 0;
+
+        // Writer only
+        private int back = 0;
+        private long sequence = 0;
+        private int dirtyPlayers = 0;
+
+        // Reader only
+        private int front = 2;
+
+        public ControllerStateStore(int playerCount) {
+            working = NewStates(playerCount);
+            for (int i=0; i<frames.length; i++) {
+                frames[i] = NewStates(playerCount);
+            }
+        }
+
+        private static ControllerState[] NewStates(int playerCount) {
+            ControllerState[] states = new ControllerState[playerCount];
+            for (int i=0; i<playerCount; i++) {
+                states[i] = new ControllerState();
+            }
+            return states;
+        }
+
+        /**
+         * The states the writer edits. Only the writer thread may touch these.
+         */
+        public ControllerState[] GetWorkingStates() {
+            return working;
+        }
+
+        /**
+         * Makes the current working states visible to the reader, reporting every player as
+         * changed. Writer thread only.
+         */
+        public void Publish() {
+            dirtyPlayers = -1 >>> (32 - working.length);
+            PublishDirty();
+        }
+
+        /**
+         * Makes the current working states visible to the reader after a change to one player.
+         * Writer thread only.
+         */
+        public void Publish(int playerNum) {
+            dirtyPlayers |= 1 << playerNum;
+            PublishDirty();
+        }
+
+        private void PublishDirty() {
+            ControllerState[] frame = frames[back];
+            frameSequences[back] = ++sequence;
+            while (true) {
+                int current = middle.get();
+                ControllerState[] pending = (current & FRESH) != 0 ? frames[current & INDEX_MASK] : null;
+                for (int i=0; i<working.length; i++) {
+                    frame[i].CopyFrom(working[i]);
+                    if (pending != null) {
+                        frame[i].MergeEdges(pending[i]);
+                    }
+                }
+                frameDirtyPlayers[back] = dirtyPlayers
+                    | (pending != null ? frameDirtyPlayers[current & INDEX_MASK] : 0);
+                // If the reader took the pending frame meanwhile its edges were delivered,
+                // so go round again without merging them.
+                if (middle.compareAndSet(current, back | FRESH)) {
+                    back = current & INDEX_MASK;
+                    break;
+                }
+            }
+            for (int i=0; i<working.length; i++) {
+                working[i].ClearEdges();
+            }
+            dirtyPlayers = 0;
+            publishedSequence = sequence;
+        }
+
+        /**
+         * Takes the most recent publish as the front frame. Returns false, leaving the front
+         * frame untouched, if nothing was published since the last call. Reader thread only.
+         */
+        public boolean Acquire() {
+            if ((middle.get() & FRESH) == 0) {
+                return false;
+            }
+            front = middle.getAndSet(front) & INDEX_MASK;
+            return true;
+        }
+
+        /**
+         * The states acquired by the last successful Acquire(). Reader thread only.
+         */
+        public ControllerState[] GetFrontStates() {
+            return frames[front];
+        }
+
+        public long GetFrontSequence() {
+            return frameSequences[front];
+        }
+
+        /**
+         * The players that changed in the front frame since the Acquire() before it.
+         */
+        public int GetFrontDirtyPlayers() {
+            return frameDirtyPlayers[front];
+        }
+
+        /**
+         * The players that the next Acquire() would report as changed, or 0 if it would return
+         * false. Reader thread only. If the writer publishes meanwhile the mask may miss players
+         * from that publish, but is never 0 while there is something to acquire.
+         */
+        public int PeekDirtyPlayers() {
+            int current = middle.get();
+            return (current & FRESH) != 0 ? frameDirtyPlayers[current & INDEX_MASK] : 0;
+        }
+
+        public long GetPublishedSequence() {
+            return publishedSequence;
+        }
+    }
+
+    /**
+     * Applies controller input to the working states of a ControllerStateStore and publishes
+     * the players it changed. The input handlers and InputReplayer both go through it, so a
+     * replayed recording takes the same path as the events it was made from. Writer thread only.
+     */
+    public static class StateWriter implements InputReplayer.Target
+    {
+        private final ControllerStateStore store;
+        private final ControllerState[] states;
+        private final AxisFilter[] filters;
+
+        // Timestamped input events for Unity to drain, or null while event buffering is disabled.
+        private volatile InputEventBuffer events = null;
+
+        public StateWriter(ControllerStateStore store, AxisFilter[] filters) {
+            this.store = store;
+            this.states = store.GetWorkingStates();
+            this.filters = filters;
+        }
+
+        /**
+         * Replaces the event buffer; events still pending in the previous one are discarded.
+         */
+        public void SetEventBuffer(InputEventBuffer events) {
+            this.events = events;
+        }
+
+        public InputEventBuffer GetEventBuffer() {
+            return events;
+        }
+
+        /**
+         * Applies a key going down or up. Returns false if the key is not a bridge button or
+         * was already in that state.
+         */
+        @Override
+        public boolean OnKey(int playerNum, int deviceId, int keyCode, boolean down, long eventTime) {
+            int button = ControllerState.ButtonForKeyCode(keyCode);
+            if (button == 0 || playerNum < 0 || playerNum >= states.length) {
+                return false;
+            }
+            ControllerState data = states[playerNum];
+            if (data.GetButton(button) == down) {
+                return false;
+            }
+            if (down) {
+                data.SetButtonDown(button);
+            } else {
+                data.SetButtonUp(button);
+            }
+            data.SetEventTime(eventTime);
+            InputEventBuffer events = this.events;
+            if (events != null) {
+                events.Add(playerNum, keyCode, down ? 1f : 0f, eventTime);
+            }
+            store.Publish(playerNum);
+            return true;
+        }
+
+        /**
+         * Filters raw axis values, indexed as in the snapshot, and applies them. Returns false if
+         * nothing changed once filtered.
+         */
+        @Override
+        public boolean OnAxes(int playerNum, int deviceId, float[] axes, long eventTime) {
+            if (playerNum < 0 || playerNum >= states.length) {
+                return false;
+            }
+            ControllerState data = states[playerNum];
+            float[] filtered = filters[playerNum].Apply(
+                axes[SNAPSHOT_AXIS_LSX], axes[SNAPSHOT_AXIS_LSY],
+                axes[SNAPSHOT_AXIS_RSX], axes[SNAPSHOT_AXIS_RSY],
+                axes[SNAPSHOT_AXIS_LT], axes[SNAPSHOT_AXIS_RT]);
+            float lsx = filtered[SNAPSHOT_AXIS_LSX];
+            float lsy = filtered[SNAPSHOT_AXIS_LSY];
+            float rsx = filtered[SNAPSHOT_AXIS_RSX];
+            float rsy = filtered[SNAPSHOT_AXIS_RSY];
+            float lt = filtered[SNAPSHOT_AXIS_LT];
+            float rt = filtered[SNAPSHOT_AXIS_RT];
+            // Noise the filters swallowed leaves nothing for Unity to pick up.
+            if (lsx == data.AxisLSX && lsy == data.AxisLSY && rsx == data.AxisRSX
+                && rsy == data.AxisRSY && lt == data.AxisLT && rt == data.AxisRT) {
+                return false;
+            }
+            InputEventBuffer events = this.events;
+            if (events != null) {
+                // Only axes that moved are recorded.
+                if (lsx != data.AxisLSX) events.Add(playerNum, InputEventBuffer.AXIS_CODE | OuyaController.AXIS_LS_X, lsx, eventTime);
+                if (lsy != data.AxisLSY) events.Add(playerNum, InputEventBuffer.AXIS_CODE | OuyaController.AXIS_LS_Y, lsy, eventTime);
+                if (rsx != data.AxisRSX) events.Add(playerNum, InputEventBuffer.AXIS_CODE | OuyaController.AXIS_RS_X, rsx, eventTime);
+                if (rsy != data.AxisRSY) events.Add(playerNum, InputEventBuffer.AXIS_CODE | OuyaController.AXIS_RS_Y, rsy, eventTime);
+                if (lt != data.AxisLT) events.Add(playerNum, InputEventBuffer.AXIS_CODE | OuyaController.AXIS_L2, lt, eventTime);
+                if (rt != data.AxisRT) events.Add(playerNum, InputEventBuffer.AXIS_CODE | OuyaController.AXIS_R2, rt, eventTime);
+            }
+            data.AxisLSX = lsx;
+            data.AxisLSY = lsy;
+            data.AxisRSX = rsx;
+            data.AxisRSY = rsy;
+            data.AxisLT = lt;
+            data.AxisRT = rt;
+            data.SetEventTime(eventTime);
+            store.Publish(playerNum);
+            return true;
+        }
+
+        /**
+         * Applies a pointer position with its POINTER_ flags. Movement while the pointer stays
+         * over the view adds to the deltas; entering it only sets the position. Returns false
+         * if nothing changed.
+         */
+        @Override
+        public boolean OnPointer(int playerNum, int deviceId, int flags, float x, float y, long eventTime) {
+            if (playerNum < 0 || playerNum >= states.length) {
+                return false;
+            }
+            ControllerState data = states[playerNum];
+            boolean present = flags != 0;
+            boolean moved = present && (x != data.PointerX || y != data.PointerY);
+            if (!moved && flags == data.PointerFlags) {
+                return false;
+            }
+            if (moved) {
+                if (data.PointerFlags != 0) {
+                    data.PointerDeltaX += x - data.PointerX;
+                    data.PointerDeltaY += y - data.PointerY;
+                }
+                data.PointerX = x;
+                data.PointerY = y;
+            }
+            if ((flags & ControllerState.POINTER_DOWN) != 0) {
+                data.SetButtonDown(ControllerState.BUTTON_POINTER);
+            } else {
+                data.SetButtonUp(ControllerState.BUTTON_POINTER);
+            }
+            data.PointerFlags = flags;
+            data.SetEventTime(eventTime);
+            store.Publish(playerNum);
+            return true;
+        }
+    }
+
+    /**
+     * Recognizes motion inputs and button sequences, such as a quarter circle followed by a
+     * button or a charge move, as the input arrives rather than by diffing polled state. Each
+     * pattern is compiled into a list of steps, and each player advances through them on every
+     * direction change, press and release, so matches are found at event precision. Matches
+     * go into a ring that Unity drains like the input event buffer: the code is the combo id,
+     * the value the milliseconds from the first step to the last, and the time that of the
+     * input that completed it.
+     *
+     * A pattern is a space separated list of steps:
+     * <ul>
+     *   <li>1 to 9: the stick or d-pad entering that direction in numpad notation, as seen by a
+     *   player facing right (6 is forward, 2 is down, 5 is neutral).</li>
+     *   <li>[2], [4], [6] or [8] followed by milliseconds, as in [4]800: that direction, or a
+     *   diagonal including it, held at least that long and then let go.</li>
+     *   <li>O, U, Y, A, LB, RB, LT, RT, L3 or R3: the button pressed. Buttons joined with +, as
+     *   in O+U, match when the last of them goes down while the others are held.</li>
+     *   <li>^ before a button: the button released.</li>
+     * </ul>
+     * Every step must follow the previous one within the combo's window. Inputs that do not
+     * fit the next step are ignored until the window runs out, so a sloppy 2 1 2 3 6 still
+     * counts as 2 3 6.
+     *
+     * Patterns may be added and removed from any thread. Input and Reset belong to the input
+     * thread.
+     */
+    public static class ComboRecognizer
+    {
+        public static final int MAX_STEPS = 16;
+        public static final int MAX_COMBO_ID = 0xFFFFFF;
+
+        private static final int STEP_DIRECTION = 1;
+        private static final int STEP_CHARGE = 2;
+        private static final int STEP_PRESS = 3;
+        private static final int STEP_RELEASE = 4;
+
+        // A stick component turns on past DIRECTION_ON and off again below DIRECTION_OFF, so
+        // noise around the threshold does not produce direction changes.
+        private static final float DIRECTION_ON = 0.5f;
+        private static final float DIRECTION_OFF = 0.35f;
+
+        private static final int DPAD_BUTTONS = ControllerState.BUTTON_DPU | ControllerState.BUTTON_DPR
+            | ControllerState.BUTTON_DPD | ControllerState.BUTTON_DPL;
+
+        // Numpad direction for each combination of the up, right, down and left bits.
+        private static final int[] DIRECTIONS = new int[16];
+        static {
+            for (int bits=0; bits<16; bits++) {
+                int x = ((bits & 2) != 0 ? 1 : 0) - ((bits & 8) != 0 ? 1 : 0);
+                int y = ((bits & 1) != 0 ? 1 : 0) - ((bits & 4) != 0 ? 1 : 0);
+                DIRECTIONS[bits] = 5 + x + 3 * y;
+            }
+        }
+        // The charge direction each of the up, right, down and left bits stands for.
+        private static final int[] CHARGE_DIRECTIONS = { 8, 6, 2, 4 };
+
+        private static final String[] BUTTON_NAMES = { "O", "U", "Y", "A", "LB", "RB", "LT", "RT", "L3", "R3" };
+        private static final int[] BUTTON_BITS = {
+            ControllerState.BUTTON_O, ControllerState.BUTTON_U, ControllerState.BUTTON_Y, ControllerState.BUTTON_A,
+            ControllerState.BUTTON_L1, ControllerState.BUTTON_R1, ControllerState.BUTTON_L2, ControllerState.BUTTON_R2,
+            ControllerState.BUTTON_L3, ControllerState.BUTTON_R3,
+        };
+
+        /**
+         * A compiled pattern. Step i has a kind and an argument: the direction, the button
+         * mask, or for charges the direction with the hold time in holds.
+         */
+        static class Combo {
+            final int id;
+            final int window;
+            final int[] kinds;
+            final int[] args;
+            final int[] holds;
+
+            Combo(int id, int window, int[] kinds, int[] args, int[] holds) {
+                this.id = id;
+                this.window = window;
+                this.kinds = kinds;
+                this.args = args;
+                this.holds = holds;
+            }
+        }
+
+        /**
+         * One player's progress through every combo. Bit i of active[c] means combo c is
+         * waiting for step i, entered at entered[c][i] after starting at started[c][i]; step 0
+         * is always waiting.
+         */
+        static class Progress {
+            final Combo[] combos;
+            final int[] active;
+            final long[][] entered;
+            final long[][] started;
+
+            Progress(Combo[] combos) {
+                this.combos = combos;
+                active = new int[combos.length];
+                entered = new long[combos.length][];
+                started = new long[combos.length][];
+                for (int c=0; c<combos.length; c++) {
+                    entered[c] = new long[combos[c].kinds.length];
+                    started[c] = new long[combos[c].kinds.length];
+                }
+            }
+        }
+
+        private final InputEventBuffer matches;
+        private volatile Combo[] combos = new Combo[0];
+        private volatile int mirroredPlayers = 0;
+
+        // Input thread only. Directions are tracked even while there are no combos, so a
+        // charge held before a combo is added still counts.
+        private final Progress[] players;
+        private final int[] directionBits;
+        private final long[][] heldSince;
+
+        public ComboRecognizer(int playerCount, int capacity) {
+            players = new Progress[playerCount];
+            directionBits = new int[playerCount];
+            heldSince = new long[playerCount][4];
+            matches = new InputEventBuffer(capacity);
+        }
+
+        /**
+         * The ring matches are written to. Its reader is Unity's main thread.
+         */
+        public InputEventBuffer GetMatches() {
+            return matches;
+        }
+
+        /**
+         * Compiles pattern and adds it, replacing any combo with the same id. Throws
+         * IllegalArgumentException if the pattern does not parse.
+         */
+        public synchronized void Add(int comboId, String pattern, int windowMs) {
+            if (comboId < 0 || comboId > MAX_COMBO_ID) {
+                throw new IllegalArgumentException("Combo id out of range: " + comboId);
+            }
+            if (windowMs <= 0) {
+                throw new IllegalArgumentException("Combo window must be positive: " + windowMs);
+            }
+            Combo combo = Compile(comboId, pattern, windowMs);
+            Combo[] current = combos;
+            ArrayList<Combo> updated = new ArrayList<Combo>(current.length + 1);
+            for (Combo c : current) {
+                if (c.id != comboId) {
+                    updated.add(c);
+                }
+            }
+            updated.add(combo);
+            combos = updated.toArray(new Combo[updated.size()]);
+        }
+
+        public synchronized boolean Remove(int comboId) {
+            Combo[] current = combos;
+            ArrayList<Combo> updated = new ArrayList<Combo>(current.length);
+            for (Combo c : current) {
+                if (c.id != comboId) {
+                    updated.add(c);
+                }
+            }
+            if (updated.size() == current.length) {
+                return false;
+            }
+            combos = updated.toArray(new Combo[updated.size()]);
+            return true;
+        }
+
+        public synchronized void Clear() {
+            combos = new Combo[0];
+        }
+
+        /**
+         * Mirrors a player's directions horizontally, for a player facing left: 4 then means
+         * forward and 6 back.
+         */
+        public synchronized void SetMirrored(int playerNum, boolean mirrored) {
+            if (mirrored) {
+                mirroredPlayers |= 1 << playerNum;
+            } else {
+                mirroredPlayers &= ~(1 << playerNum);
+            }
+        }
+
+        /**
+         * Forgets the progress and held directions of the players in the mask.
+         */
+        public void Reset(int playerMask) {
+            for (int i=0; i<players.length; i++) {
+                if ((playerMask & (1 << i)) != 0) {
+                    players[i] = null;
+                    directionBits[i] = 0;
+                }
+            }
+        }
+
+        /**
+         * Feeds a change to a player's state: the key that went down or up, or 0 for axes.
+         */
+        public void Input(int playerNum, ControllerState state, int keyCode, boolean down, long eventTime) {
+            if (playerNum < 0 || playerNum >= players.length) {
+                return;
+            }
+            Combo[] current = combos;
+            Progress p = players[playerNum];
+            if (current.length == 0) {
+                p = null;
+            } else if (p == null || p.combos != current) {
+                p = new Progress(current);
+                players[playerNum] = p;
+            }
+            int button = ControllerState.ButtonForKeyCode(keyCode);
+            if (button != 0 && (button & DPAD_BUTTONS) == 0) {
+                if (p != null) {
+                    Step(playerNum, p, down ? STEP_PRESS : STEP_RELEASE, button, 0, state.Buttons, eventTime);
+                }
+                return;
+            }
+            int previous = directionBits[playerNum];
+            int bits = DirectionBits(state, previous, (mirroredPlayers & (1 << playerNum)) != 0);
+            if (bits == previous) {
+                return;
+            }
+            long[] since = heldSince[playerNum];
+            directionBits[playerNum] = bits;
+            for (int i=0; i<4; i++) {
+                int bit = 1 << i;
+                if ((previous & bit) != 0 && (bits & bit) == 0) {
+                    if (p != null) {
+                        Step(playerNum, p, STEP_CHARGE, CHARGE_DIRECTIONS[i], (int) (eventTime - since[i]), 0, eventTime);
+                    }
+                } else if ((previous & bit) == 0 && (bits & bit) != 0) {
+                    since[i] = eventTime;
+                }
+            }
+            if (p != null) {
+                Step(playerNum, p, STEP_DIRECTION, DIRECTIONS[bits], 0, 0, eventTime);
+            }
+        }
+
+        /**
+         * Advances every combo of one player by one input. Matching steps move on; the rest
+         * wait until their window runs out. Steps are visited last to first, so a step is
+         * checked against the times it was entered with before this input, not the ones the
+         * step before it just wrote when the same input matched it too (as in 6 6).
+         */
+        private void Step(int playerNum, Progress p, int kind, int arg, int held, int buttons, long eventTime) {
+            for (int c=0; c<p.combos.length; c++) {
+                Combo combo = p.combos[c];
+                long[] entered = p.entered[c];
+                long[] started = p.started[c];
+                int active = p.active[c] | 1;
+                int next = 0;
+                for (int i=combo.kinds.length-1; i>=0; i--) {
+                    if ((active & (1 << i)) == 0) {
+                        continue;
+                    }
+                    if (i > 0) {
+                        if (eventTime - entered[i] > combo.window) {
+                            continue;
+                        }
+                        next |= 1 << i;
+                    }
+                    if (!Matches(combo, i, kind, arg, held, buttons)) {
+                        continue;
+                    }
+                    long start = i == 0 ? eventTime : started[i];
+                    if (i + 1 == combo.kinds.length) {
+                        matches.Add(playerNum, combo.id, eventTime - start, eventTime);
+                        next = 0;
+                        break;
+                    }
+                    next |= 1 << (i + 1);
+                    entered[i + 1] = eventTime;
+                    started[i + 1] = start;
+                }
+                p.active[c] = next;
+            }
+        }
+
+        private static boolean Matches(Combo combo, int step, int kind, int arg, int held, int buttons) {
+            if (combo.kinds[step] != kind) {
+                return false;
+            }
+            switch (kind) {
+                case STEP_CHARGE:
+                    return combo.args[step] == arg && held >= combo.holds[step];
+                case STEP_PRESS:
+                    int mask = combo.args[step];
+                    return (mask & arg) != 0 && (buttons & mask) == mask;
+                default:
+                    return combo.args[step] == arg;
+            }
+        }
+
+        /**
+         * The up, right, down and left bits of the d-pad if any of it is held, else of the
+         * left stick, with hysteresis against the previous bits. Bits are after mirroring.
+         */
+        private static int DirectionBits(ControllerState state, int previous, boolean mirrored) {
+            int bits = 0;
+            int dpad = state.Buttons;
+            float x;
+            float y;
+            if ((dpad & DPAD_BUTTONS) != 0) {
+                x = ((dpad & ControllerState.BUTTON_DPR) != 0 ? 1 : 0) - ((dpad & ControllerState.BUTTON_DPL) != 0 ? 1 : 0);
+                y = ((dpad & ControllerState.BUTTON_DPD) != 0 ? 1 : 0) - ((dpad & ControllerState.BUTTON_DPU) != 0 ? 1 : 0);
+            } else {
+                x = state.AxisLSX;
+                y = state.AxisLSY;
+            }
+            if (mirrored) {
+                x = -x;
+            }
+            // Android's y axis points down.
+            if (-y >= ((previous & 1) != 0 ? DIRECTION_OFF : DIRECTION_ON)) bits |= 1;
+            if (x >= ((previous & 2) != 0 ? DIRECTION_OFF : DIRECTION_ON)) bits |= 2;
+            if (y >= ((previous & 4) != 0 ? DIRECTION_OFF : DIRECTION_ON)) bits |= 4;
+            if (-x >= ((previous & 8) != 0 ? DIRECTION_OFF : DIRECTION_ON)) bits |= 8;
+            return bits;
+        }
+
+        static Combo Compile(int comboId, String pattern, int windowMs) {
+            String[] tokens = pattern.trim().split("\\s+");
+            if (tokens.length == 0 || tokens[0].length() == 0) {
+                throw new IllegalArgumentException("Empty combo pattern");
+            }
+            if (tokens.length > MAX_STEPS) {
+                throw new IllegalArgumentException("Combo pattern has more than " + MAX_STEPS + " steps: " + pattern);
+            }
+            int[] kinds = new int[tokens.length];
+            int[] args = new int[tokens.length];
+            int[] holds = new int[tokens.length];
+            for (int i=0; i<tokens.length; i++) {
+                String token = tokens[i];
+                char first = token.charAt(0);
+                if (token.length() == 1 && first >= '1' && first <= '9') {
+                    kinds[i] = STEP_DIRECTION;
+                    args[i] = first - '0';
+                } else if (first == '[') {
+                    int close = token.indexOf(']');
+                    int direction = close == 2 ? token.charAt(1) - '0' : 0;
+                    if (direction != 2 && direction != 4 && direction != 6 && direction != 8) {
+                        throw new IllegalArgumentException("Charge must be [2], [4], [6] or [8]: " + token);
+                    }
+                    kinds[i] = STEP_CHARGE;
+                    args[i] = direction;
+                    try {
+                        holds[i] = Integer.parseInt(token.substring(close + 1));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Charge needs a hold time in milliseconds: " + token);
+                    }
+                } else if (first == '^') {
+                    kinds[i] = STEP_RELEASE;
+                    args[i] = ParseButton(token.substring(1));
+                } else {
+                    kinds[i] = STEP_PRESS;
+                    for (String name : token.split("\\+")) {
+                        args[i] |= ParseButton(name);
+                    }
+                }
+            }
+            return new Combo(comboId, windowMs, kinds, args, holds);
+        }
+
+        private static int ParseButton(String name) {
+            for (int i=0; i<BUTTON_NAMES.length; i++) {
+                if (BUTTON_NAMES[i].equalsIgnoreCase(name)) {
+                    return BUTTON_BITS[i];
+                }
+            }
+            throw new IllegalArgumentException("Unknown button in combo pattern: " + name);
+        }
+    }
+
+    /**
+     * The bridge's input handling with the Android and Unity specifics left to its host: the
+     * device registry, player slots, state store and the dispatch of key and axis input into
+     * it. The host feeds it device notifications and input through ControllerBackend-backed
+     * lookups, and it reports to Unity through a UnitySink. OuyaUnityActivity is one host; a
+     * test or benchmark can drive it with a fake backend and no device attached.
+     *
+     * Device and input methods belong to a single input thread (the UI thread on Android), the
+     * snapshot and latency methods to a single reader thread (Unity's main thread), and the
+     * filter and buffer settings may be changed from any thread.
+     */
+    public static class InputEngine implements InputReplayer.Target
+    {
+        /**
+         * Where the engine learns which input devices exist.
+         */
+        public interface ControllerBackend
+        {
+            /**
+             * Ids of every input device currently attached.
+             */
+            int[] GetDeviceIds();
+
+            /**
+             * Fills in the id, name and descriptor of a device, and the player number the
+             * controller SDK gives it if any. Returns false if it is gone, virtual or not a game
+             * controller.
+             */
+            boolean ReadDevice(int deviceId, Device device);
+
+            /**
+             * Called before the whole device list is read again, for SDKs that keep their own.
+             */
+            void Reinitialize();
+        }
+
+        /**
+         * Where the engine sends what Unity hears about outside of snapshots.
+         */
+        public interface UnitySink
+        {
+            void SendDeviceChanges(DeviceChanges changes);
+            void SendMenuButtonPressed(int playerNum);
+        }
+
+        private final ControllerBackend backend;
+        private final UnitySink sink;
+        private final PlayerSlots playerSlots;
+        private final ControllerStateStore stateStore;
+        private final ControllerState[] playerStates;
+        private final AxisFilter[] axisFilters;
+        private final StateWriter stateWriter;
+        private final LatencyWindow[] inputLatency;
+        private final ComboRecognizer comboRecognizer;
+        private final ControllerProfiles controllerProfiles = new ControllerProfiles();
+
+        /**
+         * The player of each known input device, rebuilt on every device change. Lookups for
+         * devices not in it read the device once and cache the answer.
+         */
+        private volatile DevicePlayerMap devicePlayers = new DevicePlayerMap();
+
+        /**
+         * The devices Unity currently knows about, by device id, and the notifications received
+         * since they were last sent. Guarded by knownDevices.
+         */
+        private final Map<Integer, Device> knownDevices = new LinkedHashMap<Integer, Device>();
+        private final Set<Integer> changedDeviceIds = new HashSet<Integer>();
+        private boolean deviceTopologyChanged = false;
+
+        private volatile InputRecorder recorder;
+
+        // Matches pending for Unity. Combos are rare next to raw input, so this is generous.
+        private static final int COMBO_EVENT_CAPACITY = 64;
+
+        // Reader thread only
+        private float[] snapshot = new float[SNAPSHOT_HEADER];
+
+        public InputEngine(int playerCount, ControllerBackend backend, UnitySink sink) {
+            this(playerCount, 0, backend, sink);
+        }
+
+        /**
+         * An engine whose first sdkPlayers slots are kept for the player numbers the backend
+         * reports, as the OUYA SDK numbers its controllers.
+         */
+        public InputEngine(int playerCount, int sdkPlayers, ControllerBackend backend, UnitySink sink) {
+            this.backend = backend;
+            this.sink = sink;
+            playerSlots = new PlayerSlots(playerCount, sdkPlayers);
+            stateStore = new ControllerStateStore(playerCount);
+            playerStates = stateStore.GetWorkingStates();
+            axisFilters = new AxisFilter[playerCount];
+            inputLatency = new LatencyWindow[playerCount];
+            for (int i=0; i<playerCount; i++) {
+                axisFilters[i] = new AxisFilter();
+                inputLatency[i] = new LatencyWindow(256);
+            }
+            stateWriter = new StateWriter(stateStore, axisFilters);
+            comboRecognizer = new ComboRecognizer(playerCount, COMBO_EVENT_CAPACITY);
+        }
+
+        public int GetPlayerCount() {
+            return playerStates.length;
+        }
+
+        /**
+         * Input recorded from now on goes to recorder, or nowhere if it is null.
+         */
+        public void SetRecorder(InputRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        public InputRecorder GetRecorder() {
+            return recorder;
+        }
+
+        /**
+         * Reads every device again and sends Unity the complete device list, replacing whatever
+         * it had.
+         */
+        public void ResetDevices() {
+            long start = System.nanoTime();
+            DeviceChanges changes = new DeviceChanges();
+            changes.reset = true;
+            synchronized (knownDevices) {
+                backend.Reinitialize();
+                ArrayList<Device> devices = ReadDevices();
+                knownDevices.clear();
+                for (Device device : devices) {
+                    knownDevices.put(device.id, device);
+                }
+                changedDeviceIds.clear();
+                deviceTopologyChanged = false;
+                devicePlayers = DevicePlayerMap.Build(devices);
+                changes.added = devices;
+            }
+            sink.SendDeviceChanges(changes);
+            metrics.Record(BridgeMetrics.OP_SEND_DEVICES, start);
+        }
+
+        /**
+         * Notes a device notification for the next FlushDeviceChanges. Any thread.
+         */
+        public void OnDeviceAdded(int deviceId) {
+            synchronized (knownDevices) {
+                deviceTopologyChanged = true;
+            }
+        }
+
+        public void OnDeviceChanged(int deviceId) {
+            synchronized (knownDevices) {
+                changedDeviceIds.add(deviceId);
+            }
+        }
+
+        public void OnDeviceRemoved(int deviceId) {
+            synchronized (knownDevices) {
+                deviceTopologyChanged = true;
+            }
+        }
+
+        /**
+         * Sends Unity only the devices that were added, removed or reassigned since the last
+         * update. The whole device list is only read again when a device was actually added or
+         * removed; changed notifications just re-read the devices concerned.
+         */
+        public void FlushDeviceChanges() {
+            long start = System.nanoTime();
+            DeviceChanges changes = new DeviceChanges();
+            synchronized (knownDevices) {
+                if (deviceTopologyChanged) {
+                    backend.Reinitialize();
+                    Map<Integer, Device> current = new LinkedHashMap<Integer, Device>();
+                    for (Device device : ReadDevices()) {
+                        current.put(device.id, device);
+                    }
+                    for (Integer id : knownDevices.keySet()) {
+                        if (!current.containsKey(id)) {
+                            changes.removed.add(id);
+                        }
+                    }
+                    for (Device device : current.values()) {
+                        if (!device.sameAs(knownDevices.get(device.id))) {
+                            changes.added.add(device);
+                        }
+                    }
+                    knownDevices.clear();
+                    knownDevices.putAll(current);
+                } else {
+                    for (Integer id : changedDeviceIds) {
+                        Device device = ReadDevice(id);
+                        Device known = knownDevices.get(id);
+                        if (device == null) {
+                            if (known != null) {
+                                knownDevices.remove(id);
+                                changes.removed.add(id);
+                            }
+                            ClearPlayers(playerSlots.Release(id));
+                        } else if (!device.sameAs(known)) {
+                            knownDevices.put(id, device);
+                            changes.added.add(device);
+                        }
+                    }
+                }
+                changedDeviceIds.clear();
+                deviceTopologyChanged = false;
+                if (changes.isEmpty()) {
+                    return;
+                }
+                devicePlayers = DevicePlayerMap.Build(new ArrayList<Device>(knownDevices.values()));
+            }
+            sink.SendDeviceChanges(changes);
+            metrics.Record(BridgeMetrics.OP_SEND_DEVICE_CHANGES, start);
+        }
+
+        /**
+         * Resolves the player for an input device, or DEVICE_NOT_OUYACONTROLLER_COMPATIBLE if it
+         * is not a controller or there is no slot for it. A device not seen since the last device
+         * change is read once, which gives a controller a player slot if it has none yet, and the
+         * answer is cached either way.
+         */
+        public int GetPlayer(int deviceId) {
+            DevicePlayerMap map = devicePlayers;
+            int playerNum = map.GetPlayer(deviceId);
+            if (playerNum == DevicePlayerMap.UNKNOWN) {
+                Device device = ReadDevice(deviceId);
+                playerNum = device != null ? device.player : DEVICE_NOT_OUYACONTROLLER_COMPATIBLE;
+                map.Put(deviceId, playerNum, device != null ? device.profile : null);
+            }
+            return playerNum;
+        }
+
+        /**
+         * How to read a device resolved by GetPlayer: its profile, or the OUYA layout.
+         */
+        public ControllerProfile GetProfile(int deviceId) {
+            ControllerProfile profile = devicePlayers.GetProfile(deviceId);
+            return profile != null ? profile : ControllerProfile.OUYA;
+        }
+
+        public ControllerProfiles GetControllerProfiles() {
+            return controllerProfiles;
+        }
+
+        /**
+         * Looks up the profile of every known device again, after profiles were added or
+         * removed. Any thread.
+         */
+        public void RefreshProfiles() {
+            synchronized (knownDevices) {
+                for (Device device : knownDevices.values()) {
+                    device.profile = controllerProfiles.Find(device.vendorId, device.productId, device.name);
+                }
+                devicePlayers = DevicePlayerMap.Build(new ArrayList<Device>(knownDevices.values()));
+            }
+        }
+
+        /**
+         * Records and applies a key going down or up, and passes any change on to combo
+         * recognition. The menu button is special: the OUYA SDK sends its up event together
+         * with the down event, so an up is passed straight to Unity as a one frame press
+         * instead of changing the state. Returns false if nothing changed.
+         */
+        @Override
+        public boolean OnKey(int playerNum, int deviceId, int keyCode, boolean down, long eventTime) {
+            InputRecorder r = recorder;
+            if (r != null) {
+                r.RecordKey(playerNum, deviceId, keyCode, down, eventTime);
+            }
+            if (keyCode == OuyaController.BUTTON_MENU) {
+                if (!down) {
+                    sink.SendMenuButtonPressed(playerNum);
+                }
+                return !down;
+            }
+            if (!stateWriter.OnKey(playerNum, deviceId, keyCode, down, eventTime)) {
+                return false;
+            }
+            comboRecognizer.Input(playerNum, playerStates[playerNum], keyCode, down, eventTime);
+            return true;
+        }
+
+        /**
+         * Records and applies raw axis values indexed as in the snapshot. Returns false if
+         * nothing changed once filtered.
+         */
+        @Override
+        public boolean OnAxes(int playerNum, int deviceId, float[] axes, long eventTime) {
+            InputRecorder r = recorder;
+            if (r != null) {
+                r.RecordAxes(playerNum, deviceId, axes, eventTime);
+            }
+            if (!stateWriter.OnAxes(playerNum, deviceId, axes, eventTime)) {
+                return false;
+            }
+            comboRecognizer.Input(playerNum, playerStates[playerNum], 0, false, eventTime);
+            return true;
+        }
+
+        /**
+         * Presses and releases the d-pad buttons to follow a hat switch, for pads whose d-pad
+         * is only reported as the hat axes. Only buttons that change are passed on.
+         */
+        public void OnHat(int playerNum, int deviceId, float x, float y, long eventTime) {
+            if (playerNum < 0 || playerNum >= playerStates.length) {
+                return;
+            }
+            ControllerState state = playerStates[playerNum];
+            if (state.GetButton(ControllerState.BUTTON_DPL) != x < -0.5f) {
+                OnKey(playerNum, deviceId, OuyaController.BUTTON_DPAD_LEFT, x < -0.5f, eventTime);
+            }
+            if (state.GetButton(ControllerState.BUTTON_DPR) != x > 0.5f) {
+                OnKey(playerNum, deviceId, OuyaController.BUTTON_DPAD_RIGHT, x > 0.5f, eventTime);
+            }
+            if (state.GetButton(ControllerState.BUTTON_DPU) != y < -0.5f) {
+                OnKey(playerNum, deviceId, OuyaController.BUTTON_DPAD_UP, y < -0.5f, eventTime);
+            }
+            if (state.GetButton(ControllerState.BUTTON_DPD) != y > 0.5f) {
+                OnKey(playerNum, deviceId, OuyaController.BUTTON_DPAD_DOWN, y > 0.5f, eventTime);
+            }
+        }
+
+        /**
+         * Records and applies a pointer position with its ControllerState.POINTER_ flags.
+         * Returns false if nothing changed.
+         */
+        @Override
+        public boolean OnPointer(int playerNum, int deviceId, int flags, float x, float y, long eventTime) {
+            InputRecorder r = recorder;
+            if (r != null) {
+                r.RecordPointer(playerNum, deviceId, flags, x, y, eventTime);
+            }
+            return stateWriter.OnPointer(playerNum, deviceId, flags, x, y, eventTime);
+        }
+
+        /**
+         * Releases every button and centres every axis, as when the host loses focus.
+         */
+        public void ClearAll() {
+            for (int i=0; i<playerStates.length; i++) {
+                playerStates[i].Clear();
+                axisFilters[i].Reset();
+            }
+            comboRecognizer.Reset(-1);
+            stateStore.Publish();
+        }
+
+        /**
+         * The working state the input thread writes into. Fields may change while they are
+         * being read; use TakeSnapshot for a consistent view.
+         */
+        public ControllerState GetWorkingState(int playerNum) {
+            return playerNum >= 0 && playerNum < playerStates.length ? playerStates[playerNum] : null;
+        }
+
+        /**
+         * Packs every player's state into the layout documented on GetControllerSnapshot. The
+         * array is reused between calls while the number of slots stays the same. Reader
+         * thread only.
+         */
+        public float[] TakeSnapshot() {
+            // Only slots up to the highest one handed out are sent, so the copy grows with the
+            // number of players who have connected rather than with the capacity.
+            int players = playerSlots.GetSlotCount();
+            float[] out = snapshot;
+            boolean resized = out.length != SNAPSHOT_HEADER + players * SNAPSHOT_STRIDE;
+            if (resized) {
+                out = new float[SNAPSHOT_HEADER + players * SNAPSHOT_STRIDE];
+                snapshot = out;
+            }
+            boolean acquired = stateStore.Acquire();
+            if (acquired || resized) {
+                ControllerState[] states = stateStore.GetFrontStates();
+                for (int i=0; i<players; i++) {
+                    states[i].WriteSnapshot(out, SNAPSHOT_HEADER + i * SNAPSHOT_STRIDE);
+                }
+                out[SNAPSHOT_SEQUENCE] = stateStore.GetFrontSequence() & 0xFFFFFF;
+            }
+            if (acquired) {
+                out[SNAPSHOT_DIRTY_PLAYERS] = stateStore.GetFrontDirtyPlayers();
+            } else {
+                out[SNAPSHOT_DIRTY_PLAYERS] = resized ? -1 >>> (32 - Math.max(players, 1)) : 0;
+                // Edges and pointer movement were already delivered with the previous snapshot.
+                for (int offset=SNAPSHOT_HEADER; offset<out.length; offset+=SNAPSHOT_STRIDE) {
+                    out[offset + SNAPSHOT_BUTTONS_PRESSED] = 0;
+                    out[offset + SNAPSHOT_BUTTONS_RELEASED] = 0;
+                    out[offset + SNAPSHOT_POINTER_DX] = 0;
+                    out[offset + SNAPSHOT_POINTER_DY] = 0;
+                }
+            }
+            return out;
+        }
+
+        /**
+         * The players the next TakeSnapshot would report as changed. Reader thread only.
+         */
+        public int GetDirtyPlayers() {
+            return stateStore.PeekDirtyPlayers();
+        }
+
+        public long GetStateSequence() {
+            return stateStore.GetPublishedSequence();
+        }
+
+        /**
+         * Adds the time from each changed player's oldest unseen event to now, in the clock the
+         * event times use, to that player's latency window. Reader thread only.
+         */
+        public void ReportSnapshotConsumed(long now) {
+            ControllerState[] states = stateStore.GetFrontStates();
+            for (int i=0; i<states.length; i++) {
+                long eventTime = states[i].PendingEventTime;
+                if (eventTime != 0) {
+                    inputLatency[i].Add((int) (now - eventTime));
+                    states[i].PendingEventTime = 0;
+                }
+            }
+        }
+
+        public int[] GetLatencyPercentiles(int playerNum) {
+            if (playerNum < 0 || playerNum >= inputLatency.length) {
+                return null;
+            }
+            return inputLatency[playerNum].Percentiles(50, 95, 99);
+        }
+
+        public void ResetLatency() {
+            for (int i=0; i<inputLatency.length; i++) {
+                inputLatency[i].Clear();
+            }
+        }
+
+        /**
+         * Replaces the timestamped event buffer; a capacity of 0 disables it.
+         */
+        public void SetEventBufferCapacity(int capacity) {
+            stateWriter.SetEventBuffer(capacity > 0 ? new InputEventBuffer(capacity) : null);
+        }
+
+        public InputEventBuffer GetEventBuffer() {
+            return stateWriter.GetEventBuffer();
+        }
+
+        public ComboRecognizer GetComboRecognizer() {
+            return comboRecognizer;
+        }
+
+        /**
+         * Sets the stick deadzone of one player, or of all of them if playerNum is negative.
+         */
+        public void SetStickDeadzone(int playerNum, int stick, float radius) {
+            for (int i=0; i<axisFilters.length; i++) {
+                if (playerNum < 0 || playerNum == i) {
+                    axisFilters[i].SetStickDeadzone(stick, radius);
+                }
+            }
+        }
+
+        /**
+         * Sets how one axis of one player is shaped, or of all players if playerNum is negative.
+         */
+        public void SetAxisFilter(int playerNum, int axis, float deadzone, float exponent, float smoothing, float jitter) {
+            for (int i=0; i<axisFilters.length; i++) {
+                if (playerNum < 0 || playerNum == i) {
+                    axisFilters[i].SetAxis(axis, deadzone, exponent, smoothing, jitter);
+                }
+            }
+        }
+
+        private ArrayList<Device> ReadDevices() {
+            ArrayList<Device> devices = new ArrayList<Device>();
+            int[] deviceIds = backend.GetDeviceIds();
+            // Free the slots of controllers that are gone before handing out slots to new ones.
+            ClearPlayers(playerSlots.ReleaseMissing(deviceIds));
+            for (int i=0; i<deviceIds.length; i++) {
+                Device device = ReadDevice(deviceIds[i]);
+                if (device != null) {
+                    devices.add(device);
+                }
+            }
+            return devices;
+        }
+
+        /**
+         * Returns the Device for a controller, giving it a player slot if it has none, or null if
+         * the backend does not take it for a controller or there is no slot left for it. A
+         * controller the SDK numbers plays as that number.
+         */
+        private Device ReadDevice(int deviceId) {
+            Device device = new Device();
+            if (!backend.ReadDevice(deviceId, device)) {
+                return null;
+            }
+            device.profile = controllerProfiles.Find(device.vendorId, device.productId, device.name);
+            if (device.sdkPlayer >= 0) {
+                if (device.sdkPlayer >= playerSlots.GetCapacity()) {
+                    Log.w(LOG_TAG, "No player slot for " + device.name + ", player " + device.sdkPlayer + "; raise MAX_PLAYERS");
+                    return null;
+                }
+                ClearPlayers(playerSlots.Claim(device.id, device.descriptor, device.sdkPlayer));
+                device.player = device.sdkPlayer;
+                return device;
+            }
+            device.player = playerSlots.Assign(device.id, device.descriptor);
+            if (device.player == DEVICE_NOT_OUYACONTROLLER_COMPATIBLE) {
+                Log.w(LOG_TAG, "No player slot left for " + device.name + "; raise MAX_PLAYERS");
+                return null;
+            }
+            return device;
+        }
+
+        /**
+         * Clears the state of players whose controller went away, so nothing stays held for
+         * whoever gets their slot next.
+         */
+        private void ClearPlayers(int playerMask) {
+            for (int i=0; i<playerStates.length; i++) {
+                if ((playerMask & (1 << i)) != 0) {
+                    playerStates[i].Clear();
+                    axisFilters[i].Reset();
+                    stateStore.Publish(i);
+                }
+            }
+            comboRecognizer.Reset(playerMask);
+        }
     }
 
-    public class Device
+    /**
+     * Writes the controller input the bridge sees to a compact binary file that InputReplayer
+     * can play back. Records are packed into an in-memory chunk on the calling thread and full
+     * chunks are written on the executor, so the input handlers never wait on the disk.
+     *
+     * The file starts with MAGIC and VERSION. Each record is a type byte, a player byte, the
+     * device id and the milliseconds since the previous record, followed by a short key code
+     * for key records, for axis records a mask byte and a float for every axis in the mask,
+     * and for pointer records a flags byte and the x and y floats. Axes are stored raw, before
+     * filtering, and only when they changed since the player's previous axis record.
+     */
+    public static class InputRecorder
     {
-        public int id;
-        public int player;
-        public String name;
+        public static final int MAGIC = 0x4F555952; // "OUYR"
+        public static final int VERSION = 2;
+        public static final int TYPE_KEY_DOWN = 1;
+        public static final int TYPE_KEY_UP = 2;
+        public static final int TYPE_AXES = 3;
+        public static final int TYPE_POINTER = 4;
+        public static final int AXIS_COUNT = 6;
+        public static final int RECORD_HEADER_SIZE = 10;
+        private static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + 1 + AXIS_COUNT * 4;
+        private static final int CHUNK_SIZE = 16 * 1024;
+
+        private final FileOutputStream out;
+        private final Executor executor;
+        private final float[][] lastAxes = new float[256][];
+
+        // Guarded by this
+        private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        private boolean started = false;
+        private long lastTime;
+        private long recordCount = 0;
+        private boolean closed = false;
+
+        private volatile boolean failed = false;
+
+        public InputRecorder(File file, Executor executor) throws IOException {
+            this.out = new FileOutputStream(file);
+            this.executor = executor;
+            chunk.putInt(MAGIC);
+            chunk.putInt(VERSION);
+        }
+
+        public synchronized long GetRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * True if writing the file failed; nothing after the failure was saved.
+         */
+        public boolean HasFailed() {
+            return failed;
+        }
+
+        public synchronized void RecordKey(int playerNum, int deviceId, int keyCode, boolean down, long eventTime) {
+            if (Begin(down ? TYPE_KEY_DOWN : TYPE_KEY_UP, playerNum, deviceId, eventTime)) {
+                chunk.putShort((short) keyCode);
+            }
+        }
+
+        /**
+         * Records raw axis values indexed as in the snapshot. Does nothing if none of them
+         * changed since the player's previous axis record.
+         */
+        public synchronized void RecordAxes(int playerNum, int deviceId, float[] axes, long eventTime) {
+            float[] last = lastAxes[playerNum & 0xFF];
+            int mask = 0;
+            for (int i=0; i<AXIS_COUNT; i++) {
+                if (last == null || Float.floatToIntBits(axes[i]) != Float.floatToIntBits(last[i])) {
+                    mask |= 1 << i;
+                }
+            }
+            if (mask == 0 || !Begin(TYPE_AXES, playerNum, deviceId, eventTime)) {
+                return;
+            }
+            if (last == null) {
+                last = new float[AXIS_COUNT];
+                lastAxes[playerNum & 0xFF] = last;
+            }
+            chunk.put((byte) mask);
+            for (int i=0; i<AXIS_COUNT; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    chunk.putFloat(axes[i]);
+                    last[i] = axes[i];
+                }
+            }
+        }
+
+        public synchronized void RecordPointer(int playerNum, int deviceId, int flags, float x, float y, long eventTime) {
+            if (Begin(TYPE_POINTER, playerNum, deviceId, eventTime)) {
+                chunk.put((byte) flags);
+                chunk.putFloat(x);
+                chunk.putFloat(y);
+            }
+        }
+
+        /**
+         * Writes out what is left and closes the file. Records made afterwards are ignored.
+         */
+        public synchronized void Close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Flush();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        failed = true;
+                    }
+                }
+            });
+        }
+
+        private boolean Begin(int type, int playerNum, int deviceId, long eventTime) {
+            if (closed) {
+                return false;
+            }
+            if (chunk.remaining() < MAX_RECORD_SIZE) {
+                Flush();
+            }
+            long delta = started ? Math.max(0, eventTime - lastTime) : 0;
+            started = true;
+            lastTime = eventTime;
+            chunk.put((byte) type);
+            chunk.put((byte) playerNum);
+            chunk.putInt(deviceId);
+            chunk.putInt((int) Math.min(delta, Integer.MAX_VALUE));
+            recordCount++;
+            return true;
+        }
+
+        private void Flush() {
+            final ByteBuffer full = chunk;
+            chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (failed) {
+                        return;
+                    }
+                    try {
+                        out.write(full.array(), 0, full.position());
+                    } catch (IOException e) {
+                        failed = true;
+                        Log.w(LOG_TAG, "Unable to write input recording (" + e + ")");
+                    }
+                }
+            });
+        }
     }
 
-    public static class ControllerState
+    /**
+     * Plays a file written by InputRecorder back into a Target at the recorded pace, scaled by
+     * a speed factor, or as fast as possible when the speed is 0. It has no thread or clock of
+     * its own: the host calls Step with the current time and is told when the next record is
+     * due, so a recording can drive the UI thread through a Handler or run flat out in a headless
+     * test. Event times given to the target are the times records were due, in the host's clock.
+     * Not thread safe.
+     */
+    public static class InputReplayer
     {
-        public float AxisLSX = 0;
-        public float AxisLSY = 0;
-        public float AxisRSX = 0;
-        public float AxisRSY = 0;
-        public float AxisLT = 0;
-        public float AxisRT = 0;
-        public boolean ButtonO = false;
-        public boolean ButtonU = false;
-        public boolean ButtonY = false;
-        public boolean ButtonA = false;
-        public boolean ButtonDPD = false;
-        public boolean ButtonDPU = false;
-        public boolean ButtonDPL = false;
-        public boolean ButtonDPR = false;
-        public boolean ButtonL1 = false;
-        public boolean ButtonL2 = false;
-        public boolean ButtonL3 = false;
-        public boolean ButtonR1 = false;
-        public boolean ButtonR2 = false;
-        public boolean ButtonR3 = false;
-        public boolean ButtonSystem = false;
+        /**
+         * Receives replayed input. Axes are raw values indexed as in the snapshot, in an array
+         * the replayer reuses, and pointer flags are ControllerState.POINTER_ bits. Return
+         * whether the input changed anything.
+         */
+        public interface Target
+        {
+            boolean OnKey(int playerNum, int deviceId, int keyCode, boolean down, long eventTime);
+            boolean OnAxes(int playerNum, int deviceId, float[] axes, long eventTime);
+            boolean OnPointer(int playerNum, int deviceId, int flags, float x, float y, long eventTime);
+        }
 
-        public void Clear() {
-            AxisLSX = 0;
-            AxisLSY = 0;
-            AxisRSX = 0;
-            AxisRSY = 0;
-            AxisLT = 0;
-            AxisRT = 0;
+        private final ByteBuffer data;
+        private final float speed;
+        private final float[][] axes = new float[256][];
+        private long startTime = 0;
+        // Milliseconds from the first record to the last one applied
+        private long recordedTime = 0;
+        private long recordCount = 0;
+
+        public InputReplayer(ByteBuffer data, float speed) throws IOException {
+            // Version 1 recordings are the same without pointer records.
+            if (data.remaining() < 8 || data.getInt() != InputRecorder.MAGIC) {
+                throw new IOException("unknown input recording format");
+            }
+            int version = data.getInt();
+            if (version < 1 || version > InputRecorder.VERSION) {
+                throw new IOException("unsupported input recording version " + version);
+            }
+            this.data = data;
+            this.speed = speed;
+        }
+
+        /**
+         * Opens a recording through a memory map.
+         */
+        public static InputReplayer Open(File file, float speed) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                return new InputReplayer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), speed);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Sets the time the first record is due, in the same clock later passed to Step.
+         */
+        public void Start(long now) {
+            startTime = now;
+        }
+
+        public long GetRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Applies every record due by now. Returns when the next record is due, or -1 once
+         * the recording has been played to the end. A truncated final record is ignored.
+         */
+        public long Step(long now, Target target) {
+            return Step(now, target, Integer.MAX_VALUE);
+        }
 
-            ButtonO = false;
-            ButtonU = false;
-            ButtonY = false;
-            ButtonA = false;
-            ButtonDPD = false;
-            ButtonDPU = false;
-            ButtonDPL = false;
-            ButtonDPR = false;
-            ButtonL1 = false;
-            ButtonL2 = false;
-            ButtonL3 = false;
-            ButtonR1 = false;
-            ButtonR2 = false;
-            ButtonR3 = false;
-            ButtonSystem = false;
+        /**
+         * Applies at most maxRecords of the records due by now. Returns when the next record is
+         * due, which is no later than now if the limit stopped it, or -1 once the recording has
+         * been played to the end.
+         */
+        public long Step(long now, Target target, int maxRecords) {
+            int applied = 0;
+            while (data.remaining() >= InputRecorder.RECORD_HEADER_SIZE) {
+                int position = data.position();
+                long offset = recordedTime + data.getInt(position + 6);
+                long due = speed > 0 ? startTime + (long) (offset / speed) : startTime;
+                if (due > now || applied == maxRecords) {
+                    return due;
+                }
+                try {
+                    int type = data.get();
+                    int playerNum = data.get() & 0xFF;
+                    int deviceId = data.getInt();
+                    data.getInt();
+                    recordedTime = offset;
+                    if (type == InputRecorder.TYPE_AXES) {
+                        float[] values = axes[playerNum];
+                        if (values == null) {
+                            values = new float[InputRecorder.AXIS_COUNT];
+                            axes[playerNum] = values;
+                        }
+                        int mask = data.get();
+                        for (int i=0; i<InputRecorder.AXIS_COUNT; i++) {
+                            if ((mask & (1 << i)) != 0) {
+                                values[i] = data.getFloat();
+                            }
+                        }
+                        target.OnAxes(playerNum, deviceId, values, due);
+                    } else if (type == InputRecorder.TYPE_POINTER) {
+                        int flags = data.get();
+                        float x = data.getFloat();
+                        float y = data.getFloat();
+                        target.OnPointer(playerNum, deviceId, flags, x, y, due);
+                    } else {
+                        int keyCode = data.getShort();
+                        target.OnKey(playerNum, deviceId, keyCode, type == InputRecorder.TYPE_KEY_DOWN, due);
+                    }
+                    recordCount++;
+                    applied++;
+                } catch (BufferUnderflowException e) {
+                    break;
+                }
+            }
+            data.position(data.limit());
+            return -1;
         }
     }
 
@@ -810,6 +5189,60 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
         Toast.makeText(OuyaUnityActivity.this, errorMessage, Toast.LENGTH_LONG).show();
     }
 
+    /**
+     * Decrypts and parses a receipt response, then reports the sorted receipts to Unity.
+     * Runs on the background executor.
+     */
+    private void processReceiptResponse(String receiptResponse) {
+        long start = System.nanoTime();
+        OuyaEncryptionHelper helper = new OuyaEncryptionHelper();
+        List<Receipt> receipts;
+        try {
+            JSONObject response = new JSONObject(receiptResponse);
+            if (response.has("key") && response.has("iv")) {
+                PublicKey publicKey = mPublicKeyTask.GetIfSucceeded();
+                if (publicKey == null) {
+                    Log.e(LOG_TAG, "Dropping encrypted receipts: no public key to decrypt them with");
+                    return;
+                }
+                receipts = helper.decryptReceiptResponse(response, publicKey);
+            } else {
+                receipts = helper.parseJSONReceiptResponse(receiptResponse);
+            }
+        } catch (JSONException e) {
+            if(e.getMessage().contains("ENCRYPTED")) {
+                // This is a hack for some testing code which will be removed
+                // before the consumer release
+                try {
+                    receipts = helper.parseJSONReceiptResponse(receiptResponse);
+                } catch (IOException ioe) {
+                    Log.e(LOG_TAG, "Unable to parse receipts", ioe);
+                    return;
+                }
+            } else {
+                Log.e(LOG_TAG, "Unable to parse receipts", e);
+                return;
+            }
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Receipt Listener received invalid response error (" + e.getMessage() + ")");
+            return;
+        }
+        Collections.sort(receipts, new Comparator<Receipt>() {
+            @Override
+            public int compare(Receipt lhs, Receipt rhs) {
+                return rhs.getPurchaseDate().compareTo(lhs.getPurchaseDate());
+            }
+        });
+        mReceiptList = receipts;
+        mReceiptsFromCache = false;
+
+        // Report receipt list back to Unity.
+        messenger.SendReceipts(receipts);
+        metrics.Record(BridgeMetrics.OP_PROCESS_RECEIPTS, start);
+
+        mStoreCache.PutReceipts(mGamerUuid, receipts);
+    }
+
     /**
      * The callback for list of user receipts
      */
@@ -822,47 +5255,16 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
 
         @Override
         public void onSuccess(String receiptResponse) {
-            OuyaEncryptionHelper helper = new OuyaEncryptionHelper();
-            List<Receipt> receipts;
-            try {
-                JSONObject response = new JSONObject(receiptResponse);
-                if (response.has("key") && response.has("iv")) {
-                    receipts = helper.decryptReceiptResponse(response, mPublicKey);
-                } else {
-                    receipts = helper.parseJSONReceiptResponse(receiptResponse);
-                }
-            } catch (GeneralSecurityException e) {
-                throw new RuntimeException(e);
-            } catch (JSONException e) {
-                if(e.getMessage().contains("ENCRYPTED")) {
-                    // This is a hack for some testing code which will be removed
-                    // before the consumer release
-                    try {
-                        receipts = helper.parseJSONReceiptResponse(receiptResponse);
-                    } catch (IOException ioe) {
-                        throw new RuntimeException(ioe);
-                    }
-                } else {
-                    throw new RuntimeException(e);
+            metrics.Increment(BridgeMetrics.COUNTER_RECEIPT_RESPONSES);
+            // Decrypting, sorting and serializing a long receipt list is slow, so do it off
+            // this thread. Only schedule a run if none is already waiting for a response.
+            if (mPendingReceiptResponse.getAndSet(receiptResponse) == null) {
+                try {
+                    mBackgroundExecutor.execute(mProcessReceipts);
+                } catch (RejectedExecutionException e) {
+                    Log.w(LOG_TAG, "Dropping receipts received after shutdown");
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } catch (Exception e) {
-                Log.w(LOG_TAG, "Receipt Listener received invalid response error (" + e.getMessage() + ")");
-                return;
             }
-            Collections.sort(receipts, new Comparator<Receipt>() {
-                @Override
-                public int compare(Receipt lhs, Receipt rhs) {
-                    return rhs.getPurchaseDate().compareTo(lhs.getPurchaseDate());
-                }
-            });
-            mReceiptList = receipts;
-
-            // Report receipt list back to Unity.
-            Gson gson = new Gson();
-            String receiptJson = gson.toJson(mReceiptList);
-            UnityPlayer.UnitySendMessage("OuyaBridge", "didFetchReceipts", receiptJson);
         }
 
         /**
@@ -907,7 +5309,12 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
                 JSONObject response = new JSONObject(result);
 
                 if (response.has("key") && response.has("iv")) {
-                    id = helper.decryptPurchaseResponse(response, mPublicKey);
+                    PublicKey publicKey = mPublicKeyTask.GetIfSucceeded();
+                    if (publicKey == null) {
+                        Log.e(LOG_TAG, "Dropping encrypted purchase of " + mProductId + ": no public key to decrypt it with");
+                        return;
+                    }
+                    id = helper.decryptPurchaseResponse(response, publicKey);
                     String storedProductId;
                     synchronized (mOutstandingPurchaseRequests) {
                         storedProductId = mOutstandingPurchaseRequests.remove(id);
@@ -953,9 +5360,9 @@ public class OuyaUnityActivity extends Activity implements InputDeviceListener
             }
 
             // Report success back to Unity
-            UnityPlayer.UnitySendMessage("OuyaBridge", "didPurchaseProductId", mProductId);
+            messenger.SendPurchased(mProductId);
             // Re-request receipts to keep receipt data up to date
-            requestReceipts();
+            requestFreshReceipts();
         }
 
 
@@ -18,6 +18,7 @@ using LitJson;
 using UnityEngine;
 using System.Collections;
 using System.Collections.Generic;
+using System.Text;
 
 /// <summary>
 /// Receives events passed through the Android UnityPlayer's UnitySendMessage.
@@ -35,6 +36,26 @@ public class OuyaBridge : MonoBehaviour {
 	
 	public static string activeGamerUuid = string.Empty;
 	
+	/// <summary>
+	/// When set, the java side queues notifications as binary records which are collected once per frame,
+	/// instead of sending each one as a JSON string through UnitySendMessage.
+	/// </summary>
+	public bool useBinaryMessages = false;
+	
+	// Message types of the binary channel. Keep in sync with OuyaUnityActivity.BridgeMessenger.
+	private const byte MESSAGE_DEVICES = 1;
+	private const byte MESSAGE_PRODUCTS = 2;
+	private const byte MESSAGE_RECEIPTS = 3;
+	private const byte MESSAGE_MENU_BUTTON = 4;
+	private const byte MESSAGE_PAUSE = 5;
+	private const byte MESSAGE_RESUME = 6;
+	private const byte MESSAGE_GAMER_UUID = 7;
+	private const byte MESSAGE_PURCHASED = 8;
+	
+#if UNITY_OUYA && !UNITY_EDITOR
+	private AndroidJavaClass messageClass;
+#endif
+	
 	/// <summary>
 	/// Events you may subscribe to to be notified of important ODK events.
 	/// </summary>
@@ -79,10 +100,33 @@ public class OuyaBridge : MonoBehaviour {
 			_instance = this;
 			name = "OuyaBridge";
 			DontDestroyOnLoad(gameObject);
+#if UNITY_OUYA && !UNITY_EDITOR
+			if (useBinaryMessages) {
+				messageClass = new AndroidJavaClass(JAVA_APP_CLASS);
+				messageClass.CallStatic("SetBinaryMessagesEnabled", true);
+			}
+#endif
 		} else {
 			Destroy(gameObject);
 		}
 	}
+	
+	void OnDestroy() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		if (messageClass != null) messageClass.Dispose();
+#endif
+	}
+	
+#if UNITY_OUYA && !UNITY_EDITOR
+	void Update() {
+		if (messageClass != null) {
+			byte[] messages = messageClass.CallStatic<byte[]>("DrainMessages");
+			if (messages != null) {
+				DispatchMessages(messages);
+			}
+		}
+	}
+#endif
 		
 	#endregion
 	
@@ -169,6 +213,70 @@ public class OuyaBridge : MonoBehaviour {
 #endif
 	}	
 	
+	/// <summary>
+	/// Returns the bridge's counters and per-operation timings, named by GetMetricNames. Counters
+	/// come first, one value each; every operation then has its count, total and maximum duration
+	/// in nanoseconds followed by a histogram of durations in power-of-two microsecond buckets.
+	/// Returns null outside of an OUYA build.
+	/// </summary>
+	public static long[] GetMetrics() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(JAVA_APP_CLASS)) {
+			return activityClass.CallStatic<long[]>("GetMetrics");
+		}
+#else
+		return null;
+#endif
+	}
+	
+	/// <summary>
+	/// Returns the names of the counters, then the operations, reported by GetMetrics.
+	/// </summary>
+	public static string[] GetMetricNames() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(JAVA_APP_CLASS)) {
+			return activityClass.CallStatic<string[]>("GetMetricNames");
+		}
+#else
+		return new string[0];
+#endif
+	}
+	
+	/// <summary>
+	/// How many messages the java side has dropped because they were not drained in time.
+	/// </summary>
+	public static long GetMessageOverflowCount() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(JAVA_APP_CLASS)) {
+			return activityClass.CallStatic<long>("GetMessageOverflowCount");
+		}
+#else
+		return 0;
+#endif
+	}
+	
+	/// <summary>
+	/// Writes the bridge metrics to logcat.
+	/// </summary>
+	public static void DumpMetrics() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(JAVA_APP_CLASS)) {
+			activityClass.CallStatic("DumpMetrics");
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Clears the bridge metrics, e.g. at the start of a soak test.
+	/// </summary>
+	public static void ResetMetrics() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(JAVA_APP_CLASS)) {
+			activityClass.CallStatic("ResetMetrics");
+		}
+#endif
+	}
+	
 	/// <summary>
 	/// Refreshes the devices next frame.
 	/// </summary>
@@ -190,12 +298,20 @@ public class OuyaBridge : MonoBehaviour {
 	#region Event Receivers
 	
 	public void didChangeDevices(string jsonData) {
-		
+		ApplyDeviceChanges(JsonMapper.ToObject<DeviceChanges>(jsonData));
+	}
+	
+	private void ApplyDeviceChanges(DeviceChanges changes) {
 		List<Device> deviceList = new List<Device>();
-		deviceList = JsonMapper.ToObject<List<Device>>(jsonData);
-		devices = new Device[deviceList.Count];
-		int i=0;
-		foreach (Device d in deviceList) {
+		if (!changes.reset) {
+			// Keep the devices that were neither removed nor replaced.
+			foreach (Device d in devices) {
+				if (!changes.removed.Contains(d.id) && !ContainsDevice(changes.added, d.id)) {
+					deviceList.Add(d);
+				}
+			}
+		}
+		foreach (Device d in changes.added) {
 			if (d.player == -1) { 
 				// Device addition was detected and processed before OUYA SDK had a chance to set the real
 				// player number. We'll call back to refresh devices next frame.
@@ -205,24 +321,42 @@ public class OuyaBridge : MonoBehaviour {
 				StartCoroutine(RefreshDevicesNextFrame());
 			}
 			
-			devices[i++] = d;
+			deviceList.Add(d);
 			
 			// Uncomment to observe device connection information, useful for multicontroller debugging.
 			// Debug.Log("Connecting " + d.ToString());
 		}
+		devices = deviceList.ToArray();
 		if (Debug.isDebugBuild) Debug.Log("Devices refreshed: " + devices.Length + " devices connected");
 		if (onDevicesChanged != null)
 			onDevicesChanged();
 	}
 	
+	private static bool ContainsDevice(List<Device> deviceList, int deviceId) {
+		for (int i=0,imax=deviceList.Count; i<imax; i++) {
+			if (deviceList[i].id == deviceId) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public void didFetchReceipts(string jsonData) {
-		receipts = JsonMapper.ToObject<List<Receipt>>(jsonData);
+		ApplyReceipts(JsonMapper.ToObject<List<Receipt>>(jsonData));
+	}
+	
+	private void ApplyReceipts(List<Receipt> receiptList) {
+		receipts = receiptList;
 		if (onReceiptsUpdated != null)
 			onReceiptsUpdated();
 	}
 	
 	public void didFetchProducts(string jsonData) {
-		products = JsonMapper.ToObject<List<Product>>(jsonData);
+		ApplyProducts(JsonMapper.ToObject<List<Product>>(jsonData));
+	}
+	
+	private void ApplyProducts(List<Product> productList) {
+		products = productList;
 		if (onProductsUpdated != null)
 			onProductsUpdated();
 	}
@@ -249,6 +383,111 @@ public class OuyaBridge : MonoBehaviour {
 			onOuyaResume();
 	}
 	
+	/// <summary>
+	/// Decodes records from the binary message channel and hands each to the same handler as its
+	/// UnitySendMessage equivalent. See OuyaUnityActivity.BridgeMessenger for the format.
+	/// </summary>
+	private void DispatchMessages(byte[] messages) {
+		MessageReader reader = new MessageReader(messages);
+		while (reader.position < messages.Length) {
+			byte type = reader.ReadByte();
+			int length = reader.ReadInt();
+			int end = reader.position + length;
+			switch (type) {
+			case MESSAGE_DEVICES:
+				DeviceChanges changes = new DeviceChanges();
+				changes.reset = reader.ReadByte() != 0;
+				for (int i=0,imax=reader.ReadInt(); i<imax; i++) {
+					Device d = new Device();
+					d.id = reader.ReadInt();
+					d.player = reader.ReadInt();
+					d.name = reader.ReadString();
+					changes.added.Add(d);
+				}
+				for (int i=0,imax=reader.ReadInt(); i<imax; i++) {
+					changes.removed.Add(reader.ReadInt());
+				}
+				ApplyDeviceChanges(changes);
+				break;
+			case MESSAGE_PRODUCTS:
+				List<Product> productList = new List<Product>();
+				for (int i=0,imax=reader.ReadInt(); i<imax; i++) {
+					Product p = new Product();
+					p.identifier = reader.ReadString();
+					p.name = reader.ReadString();
+					p.priceInCents = reader.ReadInt();
+					productList.Add(p);
+				}
+				ApplyProducts(productList);
+				break;
+			case MESSAGE_RECEIPTS:
+				List<Receipt> receiptList = new List<Receipt>();
+				for (int i=0,imax=reader.ReadInt(); i<imax; i++) {
+					Receipt r = new Receipt();
+					r.identifier = reader.ReadString();
+					r.priceInCents = reader.ReadInt();
+					r.purchaseDate = reader.ReadString();
+					r.generatedDate = reader.ReadString();
+					receiptList.Add(r);
+				}
+				ApplyReceipts(receiptList);
+				break;
+			case MESSAGE_MENU_BUTTON:
+				OuyaInput.Instance.StartCoroutine(OuyaInput.Instance.EmulateMenuButtonPress(reader.ReadInt()));
+				break;
+			case MESSAGE_PAUSE:
+				didPause(string.Empty);
+				break;
+			case MESSAGE_RESUME:
+				didResume(string.Empty);
+				break;
+			case MESSAGE_GAMER_UUID:
+				didFetchGamerUuid(reader.ReadString());
+				break;
+			case MESSAGE_PURCHASED:
+				didPurchaseProductId(reader.ReadString());
+				break;
+			default:
+				if (Debug.isDebugBuild) Debug.LogWarning("Skipping unknown bridge message type " + type);
+				break;
+			}
+			reader.position = end;
+		}
+	}
+	
+	/// <summary>
+	/// Reads the big-endian values written by the java side's ByteBuffer.
+	/// </summary>
+	private struct MessageReader {
+		private byte[] data;
+		public int position;
+		
+		public MessageReader(byte[] data) {
+			this.data = data;
+			this.position = 0;
+		}
+		
+		public byte ReadByte() {
+			return data[position++];
+		}
+		
+		public int ReadInt() {
+			int value = (data[position] << 24) | (data[position + 1] << 16) | (data[position + 2] << 8) | data[position + 3];
+			position += 4;
+			return value;
+		}
+		
+		public string ReadString() {
+			int length = ReadInt();
+			if (length < 0) {
+				return null;
+			}
+			string value = Encoding.UTF8.GetString(data, position, length);
+			position += length;
+			return value;
+		}
+	}
+	
 	#endregion
 	
 	#region Getters
@@ -286,6 +525,17 @@ public class OuyaBridge : MonoBehaviour {
 		}
 	}
 	
+	/// <summary>
+	/// Payload of didChangeDevices. If reset is true, added is the full device list; otherwise
+	/// added holds new or reassigned devices and removed the ids of disconnected ones.
+	/// </summary>
+	public class DeviceChanges
+	{
+		public bool reset = false;
+		public List<Device> added = new List<Device>();
+		public List<int> removed = new List<int>();
+	}
+	
     public class Product
     {
         public string identifier = string.Empty;
@@ -58,6 +58,7 @@
 using UnityEngine;
 using System.Collections;
 using System.Collections.Generic;
+using System.Runtime.InteropServices;
 
 /// <summary>
 /// For use in configuring virtual inputs
@@ -100,6 +101,88 @@ public enum OuyaAxis
     AXIS_RTRIGGER
 }
 
+/// <summary>
+/// A single timestamped controller input, as buffered by the java side.
+/// </summary>
+public struct OuyaInputEvent
+{
+	// Set in code for axis events; the rest of the code is the OuyaController AXIS_* value.
+	public const int AXIS_CODE = 0x10000;
+	
+	public int playerNum;
+	// Android key code for buttons, or AXIS_CODE | axis for axes.
+	public int code;
+	// 1 or 0 for button down/up, the axis position for axes.
+	public float value;
+	// Milliseconds on the Android SystemClock.uptimeMillis() clock.
+	public long eventTime;
+	
+	public bool isAxis {
+		get { return (code & AXIS_CODE) != 0; }
+	}
+	
+	public override string ToString() {
+		return string.Format("Player #{0} {1} {2} = {3} at {4}", playerNum, isAxis ? "axis" : "key", code & ~AXIS_CODE, value, eventTime);
+	}
+}
+
+/// <summary>
+/// A player's cursor or touchpad as of this frame, read with OuyaInput.GetPointer.
+/// </summary>
+public struct OuyaPointer
+{
+	// In screen pixels with the origin at the bottom left like Input.mousePosition, for the
+	// controller's cursor. Kept after the pointer leaves the screen.
+	public Vector2 position;
+	// Everything the pointer moved since the previous frame, including moves between frames.
+	public Vector2 delta;
+	public bool hovering;
+	public bool down;
+	public bool downThisFrame;
+	public bool upThisFrame;
+	
+	public override string ToString() {
+		return string.Format("Pointer at {0} moved {1}{2}{3}", position, delta, hovering ? " hovering" : "", down ? " down" : "");
+	}
+}
+
+/// <summary>
+/// A combo registered with OuyaInput.AddCombo that a player just completed.
+/// </summary>
+public struct OuyaComboEvent
+{
+	public int playerNum;
+	public int comboId;
+	// Milliseconds from the combo's first input to its last.
+	public float duration;
+	// When the last input arrived, in milliseconds on the Android SystemClock.uptimeMillis() clock.
+	public long eventTime;
+	
+	public override string ToString() {
+		return string.Format("Player #{0} combo {1} in {2}ms at {3}", playerNum, comboId, duration, eventTime);
+	}
+}
+
+/// <summary>
+/// One sample of all of a player's axes, as captured by the java side in high resolution axis mode.
+/// </summary>
+public struct OuyaAxisSample
+{
+	public int playerNum;
+	// Milliseconds on the Android SystemClock.uptimeMillis() clock.
+	public long eventTime;
+	public float leftStickX;
+	public float leftStickY;
+	public float rightStickX;
+	public float rightStickY;
+	public float leftTrigger;
+	public float rightTrigger;
+	
+	public override string ToString() {
+		return string.Format("Player #{0} LS ({1}, {2}) RS ({3}, {4}) LT {5} RT {6} at {7}", playerNum, leftStickX, leftStickY, rightStickX, rightStickY, leftTrigger, rightTrigger, eventTime);
+	}
+}
+
 [System.Serializable]
 public class OuyaInputMapping {
 	[System.Serializable]
@@ -160,8 +243,15 @@ public class OuyaInput : MonoBehaviour {
 	
 	
 
+	// One per player to read, in player slot order. At most PLAYER_LIMIT: the Java side never
+	// has more slots, and only as many as OuyaUnityActivity.MAX_PLAYERS (eight by default).
+	// Players the OUYA SDK numbers keep its player number, 0 to 3; other controllers, such as
+	// pads read through AddControllerProfile, come after them from slot 4.
 	public OuyaInputMapping.Controller[] emulatedControllers;
 	
+	// Keep in sync with OuyaUnityActivity.PLAYER_LIMIT
+	public const int PLAYER_LIMIT = 24;
+	
 	private static OuyaInput _instance = null;
 	public static OuyaInput Instance {
 		get {
@@ -196,12 +286,52 @@ public class OuyaInput : MonoBehaviour {
 	private static int keysDown = 0;
 	
 	private AndroidJavaClass jc;
-	private AndroidJavaObject [] playerStates = null;
+	
+	// Layout of OuyaUnityActivity.GetControllerSnapshot. Keep in sync with the java side.
+	private const int SNAPSHOT_SEQUENCE = 0;
+	private const int SNAPSHOT_DIRTY_PLAYERS = 1;
+	private const int SNAPSHOT_HEADER = 2;
+	private const int SNAPSHOT_AXIS_LSX = 0;
+	private const int SNAPSHOT_AXIS_LSY = 1;
+	private const int SNAPSHOT_AXIS_RSX = 2;
+	private const int SNAPSHOT_AXIS_RSY = 3;
+	private const int SNAPSHOT_AXIS_LT = 4;
+	private const int SNAPSHOT_AXIS_RT = 5;
+	private const int SNAPSHOT_BUTTONS = 6;
+	private const int SNAPSHOT_BUTTONS_PRESSED = 7;
+	private const int SNAPSHOT_BUTTONS_RELEASED = 8;
+	private const int SNAPSHOT_POINTER_X = 9;
+	private const int SNAPSHOT_POINTER_Y = 10;
+	private const int SNAPSHOT_POINTER_DX = 11;
+	private const int SNAPSHOT_POINTER_DY = 12;
+	private const int SNAPSHOT_POINTER_FLAGS = 13;
+	private const int SNAPSHOT_STRIDE = 14;
+	// ControllerState.POINTER_* flags and the BUTTON_POINTER bit of the button mask
+	private const int POINTER_HOVER = 1;
+	private const int POINTER_DOWN = 2;
+	private const int BUTTON_POINTER = 1 << 20;
+	
+	private static OuyaPointer[] pointers = new OuyaPointer[0];
+	
+	// Buttons read out of the packed button mask. Bit positions are the OuyaKey values.
+	private static readonly OuyaKey[] polledKeys = {
+		OuyaKey.BUTTON_O, OuyaKey.BUTTON_U, OuyaKey.BUTTON_Y, OuyaKey.BUTTON_A,
+		OuyaKey.BUTTON_LT, OuyaKey.BUTTON_LB, OuyaKey.BUTTON_L3,
+		OuyaKey.BUTTON_RT, OuyaKey.BUTTON_RB, OuyaKey.BUTTON_R3,
+		OuyaKey.BUTTON_DPAD_UP, OuyaKey.BUTTON_DPAD_DOWN, OuyaKey.BUTTON_DPAD_LEFT, OuyaKey.BUTTON_DPAD_RIGHT
+	};
+	
+	// Set to apply every player from the next snapshot, not just those that changed.
+	private static bool applyAllPlayers = true;
+	private static int lastDeviceCount = -1;
 	
 #endif
 	void Awake() {
 		if (_instance == null) {
 			_instance = this;
+			if (emulatedControllers.Length > PLAYER_LIMIT) {
+				Debug.LogWarning("OuyaInput: only the first " + PLAYER_LIMIT + " of " + emulatedControllers.Length + " emulated controllers can receive input");
+			}
 			DontDestroyOnLoad(gameObject);
 			Init();
 		} else {
@@ -217,13 +347,6 @@ public class OuyaInput : MonoBehaviour {
 	void OnDestroy() {
 #if UNITY_OUYA && !UNITY_EDITOR
 		if (jc != null) jc.Dispose();
-		if (playerStates != null) {
-			for (int i=0; i<playerStates.Length; i++) {
-				if (playerStates[i] != null) {
-					playerStates[i].Dispose();
-				}
-			}
-		}
 #endif
 	}
 	
@@ -265,8 +388,6 @@ public class OuyaInput : MonoBehaviour {
 #if UNITY_OUYA
 		if (!Application.isEditor) {
 			
-			playerStates = new AndroidJavaObject[4]; // Hardcoded, add this to OuyaSDK.NUM_CONTROLLERS or something.
-			
 			keysDown = 0;
 			
 			// Clear lookup dictionaries
@@ -279,7 +400,7 @@ public class OuyaInput : MonoBehaviour {
 			keyCodeToEmulatedKey.Clear();
 			
 			// Populate OUYA-player mappings
-			for (int p=0; p<=3; p++) {
+			for (int p=0; p<emulatedControllers.Length; p++) {
 				OuyaInputMapping.Controller controller = emulatedControllers[p];
 				Dictionary<OuyaAxis, OuyaInputMapping.Axis> axisMappings = new Dictionary<OuyaAxis, OuyaInputMapping.Axis>();
 				Dictionary<OuyaKey, OuyaInputMapping.Key> keyMappings = new Dictionary<OuyaKey, OuyaInputMapping.Key>();
@@ -313,6 +434,352 @@ public class OuyaInput : MonoBehaviour {
 #endif
 	}
 	
+	/// <summary>
+	/// Enables buffering of every controller input event on the java side, so that inputs shorter
+	/// than a frame can be read in order with GetBufferedInputEvents. The capacity should cover all
+	/// events that can arrive between two calls. Pass 0 to disable buffering again.
+	/// </summary>
+	public static void SetInputEventBufferCapacity(int capacity) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			activityClass.CallStatic("SetInputEventBufferCapacity", capacity);
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Appends all input events buffered since the last call to events, oldest first, and returns
+	/// how many were added. Always returns 0 in the editor or while buffering is disabled.
+	/// </summary>
+	public static int GetBufferedInputEvents(List<OuyaInputEvent> events) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		if (Instance.jc == null) {
+			Instance.jc = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS);
+		}
+		long[] packed = Instance.jc.CallStatic<long[]>("DrainInputEvents");
+		if (packed == null) {
+			return 0;
+		}
+		IntFloat bits = new IntFloat();
+		for (int i=0; i<packed.Length; i+=2) {
+			OuyaInputEvent e;
+			e.eventTime = packed[i];
+			e.playerNum = (int)((ulong)packed[i + 1] >> 56);
+			e.code = (int)((packed[i + 1] >> 32) & 0xFFFFFF);
+			bits.i = (int)packed[i + 1];
+			e.value = bits.f;
+			events.Add(e);
+		}
+		return packed.Length / 2;
+#else
+		return 0;
+#endif
+	}
+	
+	/// <summary>
+	/// How many input events the java side has dropped because its buffer was full.
+	/// </summary>
+	public static long GetInputEventOverflowCount() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			return activityClass.CallStatic<long>("GetInputEventOverflowCount");
+		}
+#else
+		return 0;
+#endif
+	}
+	
+	/// <summary>
+	/// Starts recognizing a combo for every player on the java side, at input event precision.
+	/// The pattern is a space separated list of steps: 1-9 for a stick or d-pad direction in
+	/// numpad notation (6 forward, 2 down), [4]800 for a direction held at least 800ms and let
+	/// go, a button name (O, U, Y, A, LB, RB, LT, RT, L3, R3) for a press, O+U for buttons
+	/// pressed together and ^O for a release. Each step must follow the previous one within
+	/// windowMs. A combo with the same id is replaced. Returns false if the pattern is invalid.
+	/// Matches are read with GetComboEvents.
+	/// </summary>
+	public static bool AddCombo(int comboId, string pattern, int windowMs) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			return activityClass.CallStatic<bool>("AddCombo", comboId, pattern, windowMs);
+		}
+#else
+		return false;
+#endif
+	}
+	
+	public static void RemoveCombo(int comboId) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			activityClass.CallStatic<bool>("RemoveCombo", comboId);
+		}
+#endif
+	}
+	
+	public static void ClearCombos() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			activityClass.CallStatic("ClearCombos");
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Mirrors a player's directions for combo recognition, so that 6 means left while their
+	/// character faces left.
+	/// </summary>
+	public static void SetComboMirrored(int player, bool mirrored) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			activityClass.CallStatic("SetComboMirrored", player, mirrored);
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Appends every combo completed since the last call to events, oldest first, and returns
+	/// how many were added. Always returns 0 in the editor.
+	/// </summary>
+	public static int GetComboEvents(List<OuyaComboEvent> events) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		if (Instance.jc == null) {
+			Instance.jc = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS);
+		}
+		long[] packed = Instance.jc.CallStatic<long[]>("DrainComboEvents");
+		if (packed == null) {
+			return 0;
+		}
+		IntFloat bits = new IntFloat();
+		for (int i=0; i<packed.Length; i+=2) {
+			OuyaComboEvent e;
+			e.eventTime = packed[i];
+			e.playerNum = (int)((ulong)packed[i + 1] >> 56);
+			e.comboId = (int)((packed[i + 1] >> 32) & 0xFFFFFF);
+			bits.i = (int)packed[i + 1];
+			e.duration = bits.f;
+			events.Add(e);
+		}
+		return packed.Length / 2;
+#else
+		return 0;
+#endif
+	}
+	
+	/// <summary>
+	/// Teaches the java side how to read a gamepad that does not use the OUYA layout, so it feeds
+	/// the same controller state as an OUYA controller. The profile applies to devices with the
+	/// given USB vendor and product id where Android reports them, and otherwise to devices named
+	/// deviceName; pass 0 or null for whichever is not known. The mapping is a space separated
+	/// list of entries on top of the OUYA layout: keyCode=button with an Android key code and one
+	/// of O, U, Y, A, LB, RB, LT, RT, L3, R3, UP, DOWN, LEFT, RIGHT, MENU or NONE; axis=androidAxis
+	/// with one of LSX, LSY, RSX, RSY, LT, RT and an optional *scale and +offset, as in
+	/// LT=17*0.5+0.5; and HAT=DPAD for pads that report their d-pad on the hat axes.
+	/// These pads play in the player slots after the four the OUYA SDK numbers, so they need
+	/// OuyaUnityActivity.MAX_PLAYERS above four and an emulated controller for their slot.
+	/// Returns false if the mapping is invalid.
+	/// </summary>
+	public static bool AddControllerProfile(int vendorId, int productId, string deviceName, string mapping) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			return activityClass.CallStatic<bool>("AddControllerProfile", vendorId, productId, deviceName, mapping);
+		}
+#else
+		return false;
+#endif
+	}
+	
+	/// <summary>
+	/// Removes every controller profile, including the built in ones.
+	/// </summary>
+	public static void ClearControllerProfiles() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			activityClass.CallStatic("ClearControllerProfiles");
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Marks the input read by this frame's OuyaInput update as consumed, for measuring input
+	/// latency. Call it at the point where the game has acted on input, e.g. from LateUpdate.
+	/// </summary>
+	public static void ReportInputConsumed() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		if (Instance.jc == null) {
+			Instance.jc = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS);
+		}
+		Instance.jc.CallStatic("ReportSnapshotConsumed");
+#endif
+	}
+	
+	/// <summary>
+	/// Returns the 50th, 95th and 99th percentile of a player's recent input latency in
+	/// milliseconds, followed by the number of samples, or null if none have been reported
+	/// through ReportInputConsumed.
+	/// </summary>
+	public static int[] GetInputLatencyPercentiles(int player) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			return activityClass.CallStatic<int[]>("GetInputLatencyPercentiles", player);
+		}
+#else
+		return null;
+#endif
+	}
+	
+	/// <summary>
+	/// Sets a radial deadzone for one stick on the java side, as a fraction of full deflection.
+	/// Inside it the stick reads as centred, and the rest of its range is rescaled to 0..1. Pass
+	/// -1 as player to set every player. The per-axis deadZone of the input mappings still applies
+	/// on top of this.
+	/// </summary>
+	public static void SetStickDeadzone(int player, bool rightStick, float radius) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			activityClass.CallStatic("SetStickDeadzone", player, rightStick ? 1 : 0, radius);
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Shapes one axis on the java side, before Unity sees it: an axial deadzone with the rest of
+	/// the range rescaled, a response curve raising the value to exponent, smoothing where each
+	/// new value has the given weight (1 for none), and a jitter threshold below which changes
+	/// are ignored. Inputs that these filters leave unchanged no longer produce updates. Pass -1
+	/// as player to set every player.
+	/// </summary>
+	public static void SetAxisFilter(int player, OuyaAxis axis, float deadzone, float exponent, float smoothing, float jitter) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			activityClass.CallStatic("SetAxisFilter", player, (int)axis, deadzone, exponent, smoothing, jitter);
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Starts recording every controller input the java side sees to a binary file, such as one
+	/// under Application.persistentDataPath. Replaces any recording already in progress.
+	/// </summary>
+	public static void StartInputRecording(string path) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass jc = new AndroidJavaClass("com.unity3d.player.UnityPlayer")) {
+			AndroidJavaObject activity = jc.GetStatic<AndroidJavaObject>("currentActivity");
+			activity.Call("startInputRecording", path);
+		}
+#endif
+	}
+	
+	public static void StopInputRecording() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass jc = new AndroidJavaClass("com.unity3d.player.UnityPlayer")) {
+			AndroidJavaObject activity = jc.GetStatic<AndroidJavaObject>("currentActivity");
+			activity.Call("stopInputRecording");
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Plays a file made with StartInputRecording back into the controller state, speed times
+	/// faster than it was recorded, or all at once when speed is 0. The replay stops on pause.
+	/// </summary>
+	public static void StartInputReplay(string path, float speed) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass jc = new AndroidJavaClass("com.unity3d.player.UnityPlayer")) {
+			AndroidJavaObject activity = jc.GetStatic<AndroidJavaObject>("currentActivity");
+			activity.Call("startInputReplay", path, speed);
+		}
+#endif
+	}
+	
+	public static void StopInputReplay() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass jc = new AndroidJavaClass("com.unity3d.player.UnityPlayer")) {
+			AndroidJavaObject activity = jc.GetStatic<AndroidJavaObject>("currentActivity");
+			activity.Call("stopInputReplay");
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Enables high resolution axis mode, in which the java side keeps every stick and trigger
+	/// sample Android reports, including those batched between frames, for GetAxisSamples. The
+	/// capacity is per player and should cover all samples that arrive between two calls. Pass 0
+	/// to turn the mode off again.
+	/// </summary>
+	public static void SetAxisSampleBufferCapacity(int capacity) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			activityClass.CallStatic("SetAxisSampleBufferCapacity", capacity);
+		}
+#endif
+	}
+	
+	/// <summary>
+	/// Appends every axis sample captured since the last call to samples, oldest first for each
+	/// player, and returns how many were added. Always returns 0 in the editor or while high
+	/// resolution axis mode is off.
+	/// </summary>
+	public static int GetAxisSamples(List<OuyaAxisSample> samples) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		if (Instance.jc == null) {
+			Instance.jc = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS);
+		}
+		long[] packed = Instance.jc.CallStatic<long[]>("DrainAxisSamples");
+		if (packed == null) {
+			return 0;
+		}
+		IntFloat bits = new IntFloat();
+		for (int i=0; i<packed.Length; i+=4) {
+			OuyaAxisSample s;
+			s.playerNum = (int)((ulong)packed[i] >> 56);
+			s.eventTime = packed[i] & 0xFFFFFFFFFFFFFFL;
+			bits.i = (int)(packed[i + 1] >> 32); s.leftStickX = bits.f;
+			bits.i = (int)packed[i + 1]; s.leftStickY = bits.f;
+			bits.i = (int)(packed[i + 2] >> 32); s.rightStickX = bits.f;
+			bits.i = (int)packed[i + 2]; s.rightStickY = bits.f;
+			bits.i = (int)(packed[i + 3] >> 32); s.leftTrigger = bits.f;
+			bits.i = (int)packed[i + 3]; s.rightTrigger = bits.f;
+			samples.Add(s);
+		}
+		return packed.Length / 4;
+#else
+		return 0;
+#endif
+	}
+	
+	/// <summary>
+	/// How many axis samples the java side has dropped because a player's buffer was full.
+	/// </summary>
+	public static long GetAxisSampleOverflowCount() {
+#if UNITY_OUYA && !UNITY_EDITOR
+		using (AndroidJavaClass activityClass = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS)) {
+			return activityClass.CallStatic<long>("GetAxisSampleOverflowCount");
+		}
+#else
+		return 0;
+#endif
+	}
+	
+	// Reinterprets raw float bits from the java side without allocating.
+	[StructLayout(LayoutKind.Explicit)]
+	private struct IntFloat {
+		[FieldOffset(0)] public int i;
+		[FieldOffset(0)] public float f;
+	}
+	
+	/// <summary>
+	/// Returns a player's cursor or touchpad state, captured on the java side along with the
+	/// sticks. Outside of an OUYA build this is always an idle pointer.
+	/// </summary>
+	public static OuyaPointer GetPointer(int player) {
+#if UNITY_OUYA && !UNITY_EDITOR
+		if (player >= 0 && player < pointers.Length) {
+			return pointers[player];
+		}
+#endif
+		return new OuyaPointer();
+	}
+	
 	public static void ClearAllInputs() {
 		Input.ResetInputAxes();
 		for (int p=0,pmax=Instance.emulatedControllers.Length;p<pmax;p++) {
@@ -327,6 +794,11 @@ public class OuyaInput : MonoBehaviour {
 				emulatedAxis.value = 0f;
 			}
 		}
+#if UNITY_OUYA
+		System.Array.Clear(pointers, 0, pointers.Length);
+		// Force the next snapshot to be applied again.
+		applyAllPlayers = true;
+#endif
 	}
 	
 	
@@ -406,8 +878,11 @@ public class OuyaInput : MonoBehaviour {
 	 */
 	
 	IEnumerator MenuButtonPressed(string playerNumString) {
+		return EmulateMenuButtonPress(int.Parse(playerNumString));
+	}
+	
+	internal IEnumerator EmulateMenuButtonPress(int playerNum) {
 #if UNITY_OUYA && !UNITY_EDITOR
-		int playerNum = int.Parse (playerNumString);
 		SetButtonValue(playerNum, OuyaKey.BUTTON_SYSTEM, true);
 		yield return null;
 		SetButtonValue(playerNum, OuyaKey.BUTTON_SYSTEM, false);
@@ -474,46 +949,68 @@ public class OuyaInput : MonoBehaviour {
 				emulatedKey.upThisFrame = false;
 			}
 		}
+		if (pointers.Length != emulatedControllers.Length) {
+			System.Array.Resize(ref pointers, emulatedControllers.Length);
+		}
+		for (int p=0; p<pointers.Length; p++) {
+			pointers[p].delta = Vector2.zero;
+			pointers[p].downThisFrame = false;
+			pointers[p].upThisFrame = false;
+		}
 		
 		// Now that everything is cleared, recreate virtual input values for next frame
 		
 		if (!Application.isLoadingLevel) {
-			// Only query connected devices
-			for (int i=0,imax=OuyaBridge.devices.Length;i<imax;i++) {
-				// Players are zero-indexed as well.
-				if (jc == null) {
-					jc = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS);
-				}
-				if (jc != null) {
-					if (playerStates[i] == null) {
-						playerStates[i] = jc.CallStatic<AndroidJavaObject>("GetControllerState", i);
+			if (jc == null) {
+				jc = new AndroidJavaClass(OuyaBridge.JAVA_APP_CLASS);
+			}
+			if (OuyaBridge.devices.Length != lastDeviceCount) {
+				lastDeviceCount = OuyaBridge.devices.Length;
+				applyAllPlayers = true;
+			}
+			// Idle controllers cost one int per frame: the snapshot is only fetched when some
+			// player changed, and only the players that changed are applied.
+			float[] snapshot = null;
+			if (applyAllPlayers || jc.CallStatic<int>("GetDirtyPlayers") != 0) {
+				snapshot = jc.CallStatic<float[]>("GetControllerSnapshot");
+			}
+			if (snapshot != null) {
+				int dirtyPlayers = applyAllPlayers ? ~0 : (int)snapshot[SNAPSHOT_DIRTY_PLAYERS];
+				applyAllPlayers = false;
+				// The snapshot covers every player slot used so far; players past the emulated controllers are ignored
+				for (int i=0,imax=Mathf.Min(emulatedControllers.Length, (snapshot.Length - SNAPSHOT_HEADER) / SNAPSHOT_STRIDE);i<imax;i++) {
+					if ((dirtyPlayers & (1 << i)) == 0) {
+						continue;
 					}
-					if (playerStates[i] != null) {
-						
-						SetAxisValue(i, OuyaAxis.AXIS_LSTICK_X, playerStates[i].Get<float>("AxisLSX"));
-						SetAxisValue(i, OuyaAxis.AXIS_LSTICK_Y, playerStates[i].Get<float>("AxisLSY"));
-						SetAxisValue(i, OuyaAxis.AXIS_RSTICK_X, playerStates[i].Get<float>("AxisRSX"));
-						SetAxisValue(i, OuyaAxis.AXIS_RSTICK_Y, playerStates[i].Get<float>("AxisRSY"));
-						SetAxisValue(i, OuyaAxis.AXIS_LTRIGGER, playerStates[i].Get<float>("AxisLT"));
-						SetAxisValue(i, OuyaAxis.AXIS_RTRIGGER, playerStates[i].Get<float>("AxisRT"));
-						
-						SetButtonValue(i, OuyaKey.BUTTON_O, playerStates[i].Get<bool>("ButtonO"));
-						SetButtonValue(i, OuyaKey.BUTTON_U, playerStates[i].Get<bool>("ButtonU"));
-						SetButtonValue(i, OuyaKey.BUTTON_Y, playerStates[i].Get<bool>("ButtonY"));
-						SetButtonValue(i, OuyaKey.BUTTON_A, playerStates[i].Get<bool>("ButtonA"));
-						
-						SetButtonValue(i, OuyaKey.BUTTON_LT, playerStates[i].Get<bool>("ButtonL2"));
-						SetButtonValue(i, OuyaKey.BUTTON_LB, playerStates[i].Get<bool>("ButtonL1"));
-						SetButtonValue(i, OuyaKey.BUTTON_L3, playerStates[i].Get<bool>("ButtonL3"));
-						SetButtonValue(i, OuyaKey.BUTTON_RT, playerStates[i].Get<bool>("ButtonR2"));
-						SetButtonValue(i, OuyaKey.BUTTON_RB, playerStates[i].Get<bool>("ButtonR1"));
-						SetButtonValue(i, OuyaKey.BUTTON_R3, playerStates[i].Get<bool>("ButtonR3"));
-						
-						SetButtonValue(i, OuyaKey.BUTTON_DPAD_UP, playerStates[i].Get<bool>("ButtonDPU"));
-						SetButtonValue(i, OuyaKey.BUTTON_DPAD_DOWN, playerStates[i].Get<bool>("ButtonDPD"));
-						SetButtonValue(i, OuyaKey.BUTTON_DPAD_LEFT, playerStates[i].Get<bool>("ButtonDPL"));
-						SetButtonValue(i, OuyaKey.BUTTON_DPAD_RIGHT, playerStates[i].Get<bool>("ButtonDPR"));
+					// Players are zero-indexed as well.
+					int offset = SNAPSHOT_HEADER + i * SNAPSHOT_STRIDE;
+					SetAxisValue(i, OuyaAxis.AXIS_LSTICK_X, snapshot[offset + SNAPSHOT_AXIS_LSX]);
+					SetAxisValue(i, OuyaAxis.AXIS_LSTICK_Y, snapshot[offset + SNAPSHOT_AXIS_LSY]);
+					SetAxisValue(i, OuyaAxis.AXIS_RSTICK_X, snapshot[offset + SNAPSHOT_AXIS_RSX]);
+					SetAxisValue(i, OuyaAxis.AXIS_RSTICK_Y, snapshot[offset + SNAPSHOT_AXIS_RSY]);
+					SetAxisValue(i, OuyaAxis.AXIS_LTRIGGER, snapshot[offset + SNAPSHOT_AXIS_LT]);
+					SetAxisValue(i, OuyaAxis.AXIS_RTRIGGER, snapshot[offset + SNAPSHOT_AXIS_RT]);
+					
+					int buttons = (int)snapshot[offset + SNAPSHOT_BUTTONS];
+					int pressed = (int)snapshot[offset + SNAPSHOT_BUTTONS_PRESSED];
+					int released = (int)snapshot[offset + SNAPSHOT_BUTTONS_RELEASED];
+					for (int k=0; k<polledKeys.Length; k++) {
+						int bit = 1 << (int)polledKeys[k];
+						// Replay edges first so that a button tapped between two frames still
+						// reports both down and up this frame.
+						if ((released & bit) != 0) SetButtonValue(i, polledKeys[k], false);
+						if ((pressed & bit) != 0) SetButtonValue(i, polledKeys[k], true);
+						SetButtonValue(i, polledKeys[k], (buttons & bit) != 0);
 					}
+					
+					// Android's y axis points down, Unity's screen y axis up.
+					int pointerFlags = (int)snapshot[offset + SNAPSHOT_POINTER_FLAGS];
+					pointers[i].position = new Vector2(snapshot[offset + SNAPSHOT_POINTER_X], Screen.height - snapshot[offset + SNAPSHOT_POINTER_Y]);
+					pointers[i].delta = new Vector2(snapshot[offset + SNAPSHOT_POINTER_DX], -snapshot[offset + SNAPSHOT_POINTER_DY]);
+					pointers[i].hovering = (pointerFlags & POINTER_HOVER) != 0;
+					pointers[i].down = (pointerFlags & POINTER_DOWN) != 0;
+					pointers[i].downThisFrame = (pressed & BUTTON_POINTER) != 0;
+					pointers[i].upThisFrame = (released & BUTTON_POINTER) != 0;
 				}
 			}
 		}